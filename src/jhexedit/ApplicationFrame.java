@@ -151,7 +151,7 @@ public class ApplicationFrame extends JFrame {
   
   public BinaryEditor openDocument(File file) {
     try {
-      BinaryDocument doc = new AnnotatedBinaryDocument(file);
+      BinaryDocument doc = new AnnotatedBinaryDocument(file, false, BinaryDocument.PAGED);
       HexEditor hexEditor = new HexEditor(doc);
       addEditor(hexEditor);
       return hexEditor;
@@ -42,6 +42,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.datatransfer.*;
 import java.awt.event.*;
+import java.io.*;
 import java.util.*;
 
 import jhexedit.bdoc.*;
@@ -51,6 +52,9 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
         
   // CONSTANTS
   public static final int DEFAULT_BYTES_PER_ROW = 16;
+
+  // Pasted bytes are parsed and inserted this many at a time
+  private static final int PASTE_BUFFER_SIZE = 64 << 10;
   
   // MEMBERS
   protected BinaryDocument document;
@@ -85,7 +89,7 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
     setCurrentLocation(document.createOffset(0));
     
     radix = 16;
-    byteWidth = Integer.toString(0xFF,radix).length(); 
+    byteWidth = ByteFormat.getByteWidth(radix);
     
     setBackground(Color.WHITE);
     setForeground(Color.BLACK);
@@ -121,6 +125,9 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
     
     if (this.document != null)
       document.addObserver(localDocumentObserver);
+
+    // Every row shows something else now
+    localTextGridModel.fireTextGridModelEvent(new TextGridModelEvent(localTextGridModel));
   }
 
   public Location getCurrentLocation() {
@@ -137,10 +144,21 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
   }
   
   public void setSelectionSpan(ByteSpan selection) {
+    ByteSpan oldSelection = this.selection;
     this.selection = selection;
     fireBinaryEditorEvent( new BinaryEditorEvent(this, document, getCurrentLocation(), selection, null,
                                                     BinaryEditorEvent.SELECTION_CHANGED) );
-    repaint();
+    repaintSpan(oldSelection);
+    repaintSpan(selection);
+  }
+
+  /**
+   * Repaint the rows of span, if any.
+   */
+  protected void repaintSpan(ByteSpan span) {
+    if (span != null)
+      repaintRows((int) (span.getStartLocation().getOffset()/bytesPerRow),
+                  (int) (span.getEndLocation().getOffset()/bytesPerRow));
   }
 
   public void addBinaryEditorListener(BinaryEditorListener l) {
@@ -164,10 +182,10 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
   }
 
   public void copy() {
-    String selectedText = getSelectedText().replace(" ", "");
-    if (selectedText != null && selectedText.length() > 0) {
-      StringSelection ss = new StringSelection(selectedText);
-      Toolkit.getDefaultToolkit().getSystemClipboard().setContents(ss, null);
+    ByteSpan selection = getSelectionSpan();
+    if (selection != null && selection.length() > 0) {
+      ByteSelection bs = new ByteSelection(document.snapshot(selection), radix, byteWidth);
+      Toolkit.getDefaultToolkit().getSystemClipboard().setContents(bs, bs);
     }
   }
 
@@ -180,22 +198,30 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
   }
 
   public void paste() {
-    Transferable t = Toolkit.getDefaultToolkit().getSystemClipboard().getContents(null);
+    paste(Toolkit.getDefaultToolkit().getSystemClipboard().getContents(null));
+  }
+
+  /**
+   * Paste the contents of t at the cursor, replacing the selection if any.
+   */
+  public void paste(Transferable t) {
     try {
-      if (t != null && t.isDataFlavorSupported(DataFlavor.stringFlavor)) {
-        String text = (String)t.getTransferData(DataFlavor.stringFlavor);
-        for (int i = 0; i < text.length(); i++) {
-          localTextGridCursor.typeKeyChar(text.charAt(i));
-        }
+      if (t != null && t.isDataFlavorSupported(ByteSelection.snapshotFlavor)) {
+        localTextGridCursor.paste((Snapshot) t.getTransferData(ByteSelection.snapshotFlavor));
+      }
+      else if (t != null && t.isDataFlavorSupported(DataFlavor.stringFlavor)) {
+        Reader reader = DataFlavor.stringFlavor.getReaderForText(t);
+        localTextGridCursor.paste(new DigitInputStream(reader, radix, byteWidth));
       }
     } catch (Exception e) { }
   }
 
   ////////////////////////////////
   // GRID MODEL
-  private class LocalTextGridModel implements TextGridModel {
-    private int lastRowIndex = 0;
-    private String lastRowText = null;
+  private class LocalTextGridModel implements TextGridRowModel {
+    private int lastRowIndex = -1;
+    private char [] rowText = new char[0];
+    private byte [] rowBytes = new byte[0];
     private LinkedList listeners;
     private Color whiteColor = new Color(254, 254, 254);
     private Color alternateColor = new Color(237, 243, 254);
@@ -209,15 +235,16 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
     }
     
     public int getRowCount() {
-      return (int) document.length()/bytesPerRow + 1;
+      // Rows past Integer.MAX_VALUE cannot be shown
+      return (int) Math.min(document.length()/bytesPerRow + 1, Integer.MAX_VALUE);
     }
   
     public char getCharAt(int row, int col) {
-      if (lastRowText == null || lastRowIndex != row ) {
+      if (lastRowIndex != row) {
+        formatRow(row);
         lastRowIndex = row;
-        lastRowText  = getRowText(row);
       }
-      return lastRowText.charAt(col);
+      return rowText[col];
     }
     
     public Color getCharColor(int row, int col) {
@@ -245,42 +272,70 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
       while(i.hasNext()) {
         TextGridModelListener l = (TextGridModelListener) i.next();
         l.textGridUpdated(e);
-        lastRowIndex = 0;
-        lastRowText = null;
+        lastRowIndex = -1;
       }
     }
 
     public String getRowText(int row) {
-      StringBuilder result = new StringBuilder();
-      int bytesRead = 0;
-      byte[] b = new byte[bytesPerRow];
-
-      try {
-        bytesRead = document.read(document.createOffset(row*bytesPerRow), b);
-      } catch (Exception ignore) {}
-
-      for (int i = 0; i < bytesRead; i++) {
-        if (i > 0) result.append(' ');
-        String tmp = Integer.toString(0xFF & b[i], radix);
-        int len = tmp.length();
-        while (len < byteWidth) {
-          String pad = Integer.toString(0, radix);
-          len += pad.length();
-          result.append(pad);
-        }
-        result.append(tmp);
+      formatRow(row);
+      lastRowIndex = row;
+      return new String(rowText);
+    }
+
+    public void getRows(int firstRow, int lastRow, char [] chars, int off, TextGridSpans spans) {
+      int columns = getColumnCount();
+      int bytesRead = readRows(firstRow, lastRow);
+      Color color = getCharColor(firstRow, 0);
+      for (int row = firstRow; row <= lastRow; row++) {
+        int i = (row - firstRow) * bytesPerRow;
+        formatRow(rowBytes, i, Math.min(bytesPerRow, bytesRead - i), chars, off);
+        spans.add(row, 0, columns, color, getCharBackground(row, 0), 0);
+        off += columns;
       }
+    }
 
-      int desiredLength = getColumnCount();
-      while (result.length() < desiredLength) {
-        result.append(' ');
+    /**
+     * Format the given row into rowText, reusing the row buffers for as
+     * long as the row width stays the same.
+     */
+    private void formatRow(int row) {
+      if (rowText.length != getColumnCount())
+        rowText = new char[getColumnCount()];
+      formatRow(rowBytes, 0, readRows(row, row), rowText, 0);
+    }
+
+    /**
+     * Write count bytes of b, starting at off, as a row of chars starting
+     * at charOff, padded with spaces.
+     */
+    private void formatRow(byte [] b, int off, int count, char [] chars, int charOff) {
+      int col = charOff;
+      for (int i = 0; i < count; i++) {
+        if (i > 0) chars[col++] = ' ';
+        col = ByteFormat.formatByte(b[off + i], radix, chars, col);
       }
+      Arrays.fill(chars, col, charOff + getColumnCount(), ' ');
+    }
+
+    /**
+     * Read the bytes of the rows from firstRow to lastRow into rowBytes.
+     *
+     * @return the number of bytes read.
+     */
+    private int readRows(int firstRow, int lastRow) {
+      int len = (lastRow - firstRow + 1) * bytesPerRow;
+      if (rowBytes.length < len)
+        rowBytes = new byte[len];
 
-      return result.toString();
+      int bytesRead = 0;
+      try {
+        bytesRead = document.read(document.createOffset((long) firstRow*bytesPerRow), rowBytes, 0, len);
+      } catch (Exception ignore) {}
+      return Math.max(bytesRead, 0);
     }
 
     public Location gridToLocation(int row, int col) {
-      return document.createOffset((row*bytesPerRow)+(col/(byteWidth+1)));
+      return document.createOffset(((long) row*bytesPerRow)+(col/(byteWidth+1)));
     }
 
     public Point locationToGrid(Location loc) {
@@ -315,7 +370,7 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
         super.right();
         isInserting = insertingAtLineStart = true;
       } else if (insertingAtLineStart) {
-        int b = document.read(document.createOffset(getCurrentRow()*bytesPerRow));
+        int b = document.read(document.createOffset((long) getCurrentRow()*bytesPerRow));
         if (b != -1) {
           isInserting = insertingAtLineStart = false;
         }
@@ -360,7 +415,7 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
           realRow--;
         }
         byte [] b = new byte[bytesPerRow];
-        int bytesRead = document.read(document.createOffset(realRow*bytesPerRow), b);
+        int bytesRead = document.read(document.createOffset((long) realRow*bytesPerRow), b);
         if (bytesRead == -1) {
           column = 0;
           row = realRow;
@@ -491,10 +546,16 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
              byteChars[i] = Integer.toString(0, radix).charAt(0);
           int byteValue = Integer.parseInt(new String(byteChars), radix);
           if (byteValue >=0 && byteValue <= 0xFF) {
-            int selectionLength = (int) selection.length();
+            long selectionLength = selection.length();
             moveTo(selection.getEndLocation().addOffset(-selectionLength + 1));
-            getDocument().delete(selection.getStartLocation(), selectionLength);
-            getDocument().insert(selection.getStartLocation(), byteValue);
+            getDocument().beginBatch();
+            try {
+              getDocument().delete(selection.getStartLocation(), selectionLength);
+              getDocument().insert(selection.getStartLocation(), byteValue);
+            }
+            finally {
+              getDocument().commit();
+            }
             right();
             clearMark();
             setSelectionSpan(null);
@@ -520,7 +581,7 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
               if (isPositionedForInsert()) {
                 if (getCurrentColumn() == 0 && getCurrentRow() == getRowCount() - 1) {
                   byte [] b = new byte[bytesPerRow];
-                  int bytesRead = document.read(document.createOffset(getCurrentRow()*bytesPerRow), b);
+                  int bytesRead = document.read(document.createOffset((long) getCurrentRow()*bytesPerRow), b);
                   if (bytesRead > 0)
                     right();
                 } else {
@@ -538,9 +599,7 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
             byteChars[i] = Integer.toString(0, radix).charAt(0);
           int byteValue = Integer.parseInt(new String(byteChars), radix);
           if (byteValue >=0 && byteValue <= 0xFF) {
-            int col = (insertingAtLineStart ? getCurrentColumn() : getCurrentColumn()+(byteWidth+1));
-            Location loc = localTextGridModel.gridToLocation(getCurrentRow(), col);
-            getDocument().insert(loc, byteValue);
+            getDocument().insert(getInsertLocation(), byteValue);
             right();
             right();
             isInserting = true;
@@ -551,6 +610,85 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
       }
     }
 
+    /**
+     * Replace the selection with the bytes read from in, or insert them, or
+     * write them over those at the cursor, as a single change. The bytes are
+     * read a buffer at a time, so the whole paste is never held in memory.
+     */
+    public void paste(InputStream in) throws IOException {
+      byte [] buffer = new byte[PASTE_BUFFER_SIZE];
+      int n = in.read(buffer);
+      if (n <= 0)
+        return;
+
+      boolean overwrite = pasteOverwrites();
+      long offset;
+      document.beginBatch();
+      try {
+        offset = startPaste();
+        for (; n > 0; n = in.read(buffer)) {
+          if (overwrite)
+            document.write(document.createOffset(offset), buffer, 0, n);
+          else
+            document.insert(document.createOffset(offset), buffer, 0, n);
+          offset += n;
+        }
+      }
+      finally {
+        document.commit();
+      }
+      moveTo(document.createOffset(offset));
+    }
+
+    /**
+     * Replace the selection with a snapshot, or insert it, or write it over
+     * the bytes at the cursor, as a single change. No bytes are copied.
+     */
+    public void paste(Snapshot snapshot) {
+      if (snapshot.length() == 0)
+        return;
+
+      boolean overwrite = pasteOverwrites();
+      long offset;
+      document.beginBatch();
+      try {
+        offset = startPaste();
+        if (overwrite)
+          document.write(document.createOffset(offset), snapshot);
+        else
+          document.insert(document.createOffset(offset), snapshot);
+      }
+      finally {
+        document.commit();
+      }
+      moveTo(document.createOffset(offset + snapshot.length()));
+    }
+
+    private boolean pasteOverwrites() {
+      return (selection == null || selection.length() == 0) && !isPositionedForInsert();
+    }
+
+    /**
+     * Delete the selection, if any, and return the offset of the first 
+     * pasted byte.
+     */
+    private long startPaste() {
+      if (selection != null && selection.length() > 0) {
+        long offset = selection.getStartLocation().getOffset();
+        document.delete(selection.getStartLocation(), selection.length());
+        clearMark();
+        return offset;
+      }
+      if (isPositionedForInsert())
+        return getInsertLocation().getOffset();
+      return localTextGridModel.gridToLocation(getCurrentRow(),getCurrentColumn()).getOffset();
+    }
+
+    private Location getInsertLocation() {
+      int col = (insertingAtLineStart ? getCurrentColumn() : getCurrentColumn()+(byteWidth+1));
+      return localTextGridModel.gridToLocation(getCurrentRow(), col);
+    }
+
     public void deleteSelection(ByteSpan selection) {
       boolean move = true;
       Location newLoc = selection.getEndLocation().addOffset(-selection.length());
@@ -559,7 +697,7 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
         move = false;
       }
       moveTo(newLoc);
-      getDocument().delete(selection.getStartLocation(), (int) selection.length());
+      getDocument().delete(selection.getStartLocation(), selection.length());
       clearMark();
       setSelectionSpan(null);
       if (move) {
@@ -625,7 +763,7 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
                 move = false;
               }
               moveTo(newLoc);
-              getDocument().delete(selection.getStartLocation(), (int) selection.length());
+              getDocument().delete(selection.getStartLocation(), selection.length());
               clearMark();
               setSelectionSpan(null);
               if (move) {
@@ -670,13 +808,27 @@ public class ByteEditor extends TextGrid implements BinaryEditor {
       // The document has changed
       if (arg instanceof ContentChangedEvent) {
         ContentChangedEvent e = (ContentChangedEvent) arg;
+        ByteSpan span = e.getSpan();
+        int firstRow = (int) (span.getStartLocation().getOffset()/bytesPerRow);
+
+        // Only writes leave the rows that follow unchanged
+        int lastRow = TextGridModelEvent.LAST_ROW;
+        int type = TextGridModelEvent.INSERT;
+        if (e.getType() == ContentChangedEvent.WRITTEN) {
+          lastRow = (int) (span.getEndLocation().getOffset()/bytesPerRow);
+          type = TextGridModelEvent.UPDATE;
+        }
+        else if (e.getType() == ContentChangedEvent.DELETED) {
+          type = TextGridModelEvent.DELETE;
+        }
+
         localTextGridModel.fireTextGridModelEvent(
           new TextGridModelEvent(localTextGridModel,
-                                 TextGridModelEvent.FIRST_ROW,
+                                 firstRow,
                                  TextGridModelEvent.FIRST_COLUMN,
-                                 TextGridModelEvent.LAST_ROW,
+                                 lastRow,
                                  TextGridModelEvent.LAST_COLUMN,
-                                 TextGridModelEvent.UPDATE));
+                                 type));
       }
     }
   }
@@ -0,0 +1,149 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+
+package jhexedit;
+
+/**
+ * Formats bytes and addresses as text without allocating. Each supported 
+ * radix (16, 8, 2 and 10) has a table holding the zero padded digits of
+ * all 256 byte values, so formatting a byte is a copy of a few chars into
+ * a buffer the caller reuses from row to row.
+ */
+public final class ByteFormat {
+
+  // CONSTANTS
+  public static final int HEX     = 16;
+  public static final int OCTAL   = 8;
+  public static final int BINARY  = 2;
+  public static final int DECIMAL = 10;
+
+  private static final char [] DIGITS = "0123456789abcdef".toCharArray();
+
+  private static final char [] HEX_TABLE     = createTable(HEX);
+  private static final char [] OCTAL_TABLE   = createTable(OCTAL);
+  private static final char [] BINARY_TABLE  = createTable(BINARY);
+  private static final char [] DECIMAL_TABLE = createTable(DECIMAL);
+
+  // The character shown for each byte in a text column
+  private static final char [] CHAR_TABLE = new char[256];
+  static {
+    for (int i=0; i<256; i++)
+      CHAR_TABLE[i] = (i >= 32 && i <= 126 ? (char) i : '.');
+  }
+
+  // CONSTRUCTORS
+  private ByteFormat() {
+  }
+
+  // PUBLIC METHODS
+
+  /**
+   * The number of digits needed to write any byte in the given radix.
+   */
+  public static int getByteWidth( int radix ) {
+    return getTable(radix).length / 256;
+  }
+
+  /**
+   * Write b in the given radix, zero padded to getByteWidth(radix) digits,
+   * into dest at off. Returns the offset just past the digits written.
+   */
+  public static int formatByte( byte b, int radix, char [] dest, int off ) {
+    char [] table = getTable(radix);
+    int width = table.length / 256;
+    System.arraycopy(table, (0xFF & b) * width, dest, off, width);
+    return off + width;
+  }
+
+  /**
+   * Write b into dest at off as it appears in a text column: printable
+   * ASCII as itself, anything else as '.'.
+   */
+  public static void formatChar( byte b, char [] dest, int off ) {
+    dest[off] = CHAR_TABLE[0xFF & b];
+  }
+
+  /**
+   * The number of hex digits addresses are written with when no address
+   * exceeds maxAddress: at least 8, more once the document grows past 4 GB.
+   */
+  public static int getAddressWidth( long maxAddress ) {
+    int bits = 64 - Long.numberOfLeadingZeros(Math.max(0xFFFFFFFFL, maxAddress));
+    return (bits + 3) / 4;
+  }
+
+  /**
+   * Write address in hex, zero padded to width digits, into dest at off.
+   * Returns the offset just past the digits written.
+   */
+  public static int formatAddress( long address, int width, char [] dest, int off ) {
+    for (int i = off + width - 1; i >= off; i--) {
+      dest[i] = DIGITS[(int) address & 0xF];
+      address >>>= 4;
+    }
+    return off + width;
+  }
+
+  ////// PRIVATE
+  private static char [] getTable( int radix ) {
+    switch (radix) {
+      case HEX:     return HEX_TABLE;
+      case OCTAL:   return OCTAL_TABLE;
+      case BINARY:  return BINARY_TABLE;
+      case DECIMAL: return DECIMAL_TABLE;
+      default:
+        throw new IllegalArgumentException("Unsupported radix: " + radix);
+    }
+  }
+
+  private static char [] createTable( int radix ) {
+    int width = 0;
+    for (int max = 0xFF; max > 0; max /= radix)
+      width++;
+
+    char [] table = new char[256 * width];
+    for (int i=0; i<256; i++) {
+      int value = i;
+      for (int j = (i+1) * width - 1; j >= i * width; j--) {
+        table[j] = DIGITS[value % radix];
+        value /= radix;
+      }
+    }
+    return table;
+  }
+}
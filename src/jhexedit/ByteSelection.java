@@ -0,0 +1,144 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+
+package jhexedit;
+
+import java.awt.datatransfer.*;
+import java.io.*;
+
+import jhexedit.bdoc.*;
+
+/**
+ * A Transferable holding a Snapshot of bytes, which editors of this
+ * application paste as is, and so in time independent of its length.
+ * The bytes are only converted to text, as digits or as characters, when
+ * another application asks for them.
+ */
+public class ByteSelection implements Transferable, ClipboardOwner {
+
+  // CONSTANTS
+  public static final DataFlavor snapshotFlavor =
+    new DataFlavor(DataFlavor.javaJVMLocalObjectMimeType + ";class=" + Snapshot.class.getName(), "Bytes");
+
+  // Longest text a selection converts to
+  private static final long MAX_TEXT_LENGTH = Integer.MAX_VALUE - 8;
+
+  // PRIVATE MEMBERS
+  private Snapshot snapshot;
+  private int radix;
+  private int byteWidth;
+
+  // CONSTRUCTORS
+  /**
+   * Construct a selection that is converted to text as the digits of each
+   * byte, in the given radix, without separators.
+   */
+  public ByteSelection( Snapshot snapshot, int radix, int byteWidth ) {
+    this.snapshot  = snapshot;
+    this.radix     = radix;
+    this.byteWidth = byteWidth;
+  }
+
+  /**
+   * Construct a selection that is converted to text as the characters of
+   * the printable bytes, with '.' in place of the others.
+   */
+  public ByteSelection( Snapshot snapshot ) {
+    this( snapshot, 0, 1 );
+  }
+
+  // GETTERS
+  public Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  // TRANSFERABLE INTERFACE
+  public DataFlavor [] getTransferDataFlavors() {
+    return new DataFlavor[] { snapshotFlavor, DataFlavor.stringFlavor };
+  }
+
+  public boolean isDataFlavorSupported( DataFlavor flavor ) {
+    return flavor.equals(snapshotFlavor) || flavor.equals(DataFlavor.stringFlavor);
+  }
+
+  public Object getTransferData( DataFlavor flavor ) throws UnsupportedFlavorException, IOException {
+    if (flavor.equals(snapshotFlavor))
+      return snapshot;
+    if (flavor.equals(DataFlavor.stringFlavor))
+      return toText();
+    throw new UnsupportedFlavorException(flavor);
+  }
+
+  // CLIPBOARD OWNER INTERFACE
+  /**
+   * Dispose of the snapshot once the clipboard no longer holds it; the
+   * documents it was pasted into keep their bytes.
+   */
+  public void lostOwnership( Clipboard clipboard, Transferable contents ) {
+    try {
+      snapshot.dispose();
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  ////// PRIVATE
+  private String toText() throws IOException {
+    long length = snapshot.length() * byteWidth;
+    if (length > MAX_TEXT_LENGTH)
+      throw new IOException("The selection is too long to be copied as text");
+
+    StringBuilder text = new StringBuilder((int) length);
+    byte [] b = new byte[8192];
+    char [] c = new char[b.length * byteWidth];
+    for (long offset = 0; offset < snapshot.length(); ) {
+      int n = snapshot.read(offset, b, 0, b.length);
+      int col = 0;
+      for (int i=0; i<n; i++) {
+        if (radix == 0)
+          ByteFormat.formatChar(b[i], c, col++);
+        else
+          col = ByteFormat.formatByte(b[i], radix, c, col);
+      }
+      text.append(c, 0, col);
+      offset += n;
+    }
+    return text.toString();
+  }
+}
@@ -42,6 +42,7 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.datatransfer.*;
 import java.awt.event.*;
+import java.io.*;
 import java.util.*;
 
 import jhexedit.bdoc.*;
@@ -51,6 +52,9 @@ public class CharEditor extends TextGrid implements BinaryEditor {
         
   // CONSTANTS
   public static final int DEFAULT_BYTES_PER_ROW = 16;
+
+  // Pasted characters are converted and inserted this many at a time
+  private static final int PASTE_BUFFER_SIZE = 64 << 10;
   
   // MEMBERS
   protected BinaryDocument document;
@@ -114,6 +118,9 @@ public class CharEditor extends TextGrid implements BinaryEditor {
     
     if (this.document != null)
       document.addObserver(localDocumentObserver);
+
+    // Every row shows something else now
+    localTextGridModel.fireTextGridModelEvent(new TextGridModelEvent(localTextGridModel));
   }
 
   public Location getCurrentLocation() {
@@ -130,10 +137,21 @@ public class CharEditor extends TextGrid implements BinaryEditor {
   }
   
   public void setSelectionSpan(ByteSpan selection) {
+    ByteSpan oldSelection = this.selection;
     this.selection = selection;
     fireBinaryEditorEvent( new BinaryEditorEvent(this, document, getCurrentLocation(), selection, null,
                                                     BinaryEditorEvent.SELECTION_CHANGED) );
-    repaint();
+    repaintSpan(oldSelection);
+    repaintSpan(selection);
+  }
+
+  /**
+   * Repaint the rows of span, if any.
+   */
+  protected void repaintSpan(ByteSpan span) {
+    if (span != null)
+      repaintRows((int) (span.getStartLocation().getOffset()/bytesPerRow),
+                  (int) (span.getEndLocation().getOffset()/bytesPerRow));
   }
 
   public void addBinaryEditorListener(BinaryEditorListener l) {
@@ -157,10 +175,10 @@ public class CharEditor extends TextGrid implements BinaryEditor {
   }
 
   public void copy() {
-    String selectedText = getSelectedText();
-    if (selectedText != null && selectedText.length() > 0) {
-      StringSelection ss = new StringSelection(selectedText);
-      Toolkit.getDefaultToolkit().getSystemClipboard().setContents(ss, null);
+    ByteSpan selection = getSelectionSpan();
+    if (selection != null && selection.length() > 0) {
+      ByteSelection bs = new ByteSelection(document.snapshot(selection));
+      Toolkit.getDefaultToolkit().getSystemClipboard().setContents(bs, bs);
     }
   }
 
@@ -173,22 +191,30 @@ public class CharEditor extends TextGrid implements BinaryEditor {
   }
 
   public void paste() {
-    Transferable t = Toolkit.getDefaultToolkit().getSystemClipboard().getContents(null);
+    paste(Toolkit.getDefaultToolkit().getSystemClipboard().getContents(null));
+  }
+
+  /**
+   * Paste the contents of t at the cursor, replacing the selection if any.
+   */
+  public void paste(Transferable t) {
     try {
-      if (t != null && t.isDataFlavorSupported(DataFlavor.stringFlavor)) {
-        String text = (String)t.getTransferData(DataFlavor.stringFlavor);
-        for (int i = 0; i < text.length(); i++) {
-          localTextGridCursor.typeKeyChar(text.charAt(i));
-        }
+      if (t != null && t.isDataFlavorSupported(ByteSelection.snapshotFlavor)) {
+        localTextGridCursor.paste((Snapshot) t.getTransferData(ByteSelection.snapshotFlavor));
+      }
+      else if (t != null && t.isDataFlavorSupported(DataFlavor.stringFlavor)) {
+        Reader reader = DataFlavor.stringFlavor.getReaderForText(t);
+        localTextGridCursor.paste(reader);
       }
     } catch (Exception e) { }
   }
 
   ////////////////////////////////
   // GRID MODEL
-  private class LocalTextGridModel implements TextGridModel {
-    private int lastRowIndex = 0;
-    private String lastRowText = null;
+  private class LocalTextGridModel implements TextGridRowModel {
+    private int lastRowIndex = -1;
+    private char [] rowText = new char[0];
+    private byte [] rowBytes = new byte[0];
     private LinkedList listeners;
     private Color whiteColor = new Color(254, 254, 254);
     private Color alternateColor = new Color(237, 243, 254);
@@ -202,15 +228,16 @@ public class CharEditor extends TextGrid implements BinaryEditor {
     }
     
     public int getRowCount() {
-      return (int) document.length()/bytesPerRow + 1;
+      // Rows past Integer.MAX_VALUE cannot be shown
+      return (int) Math.min(document.length()/bytesPerRow + 1, Integer.MAX_VALUE);
     }
   
     public char getCharAt(int row, int col) {
-      if (lastRowText == null || lastRowIndex != row ) {
+      if (lastRowIndex != row) {
+        formatRow(row);
         lastRowIndex = row;
-        lastRowText = getRowText(row);
       }
-      return lastRowText.charAt(col);
+      return rowText[col];
     }
     
     public Color getCharColor(int row, int col) {
@@ -238,38 +265,66 @@ public class CharEditor extends TextGrid implements BinaryEditor {
       while(i.hasNext()) {
         TextGridModelListener l = (TextGridModelListener) i.next();
         l.textGridUpdated(e);
-        lastRowIndex = 0;
-        lastRowText = null;
+        lastRowIndex = -1;
       }
     }
 
     public String getRowText(int row) {
-      StringBuilder result = new StringBuilder();
-      int bytesRead = 0;
-      byte [] b = new byte[bytesPerRow];
-
-      try {
-        bytesRead = document.read(document.createOffset(row*bytesPerRow), b);
-      } catch (Exception ignore) {}
+      formatRow(row);
+      lastRowIndex = row;
+      return new String(rowText);
+    }
 
-      for (int i = 0; i < bytesRead; i++) {
-        if (b[i] >= 32 && b[i] <= 126) {
-          result.append((char) b[i]);
-        } else {
-          result.append('.');
-        }
+    public void getRows(int firstRow, int lastRow, char [] chars, int off, TextGridSpans spans) {
+      int bytesRead = readRows(firstRow, lastRow);
+      Color color = getCharColor(firstRow, 0);
+      for (int row = firstRow; row <= lastRow; row++) {
+        int i = (row - firstRow) * bytesPerRow;
+        formatRow(rowBytes, i, Math.min(bytesPerRow, bytesRead - i), chars, off);
+        spans.add(row, 0, bytesPerRow, color, getCharBackground(row, 0), 0);
+        off += bytesPerRow;
       }
+    }
 
-      int desiredLength = getColumnCount();
-      while (result.length() < desiredLength) {
-        result.append(' ');
-      }
+    /**
+     * Format the given row into rowText, reusing the row buffers for as
+     * long as the row width stays the same.
+     */
+    private void formatRow(int row) {
+      if (rowText.length != bytesPerRow)
+        rowText = new char[bytesPerRow];
+      formatRow(rowBytes, 0, readRows(row, row), rowText, 0);
+    }
+
+    /**
+     * Write count bytes of b, starting at off, as a row of chars starting
+     * at charOff, padded with spaces.
+     */
+    private void formatRow(byte [] b, int off, int count, char [] chars, int charOff) {
+      for (int i = 0; i < count; i++)
+        ByteFormat.formatChar(b[off + i], chars, charOff + i);
+      Arrays.fill(chars, charOff + Math.max(count, 0), charOff + bytesPerRow, ' ');
+    }
+
+    /**
+     * Read the bytes of the rows from firstRow to lastRow into rowBytes.
+     *
+     * @return the number of bytes read.
+     */
+    private int readRows(int firstRow, int lastRow) {
+      int len = (lastRow - firstRow + 1) * bytesPerRow;
+      if (rowBytes.length < len)
+        rowBytes = new byte[len];
 
-      return result.toString();
+      int bytesRead = 0;
+      try {
+        bytesRead = document.read(document.createOffset((long) firstRow*bytesPerRow), rowBytes, 0, len);
+      } catch (Exception ignore) {}
+      return Math.max(bytesRead, 0);
     }
 
     public Location gridToLocation(int row, int col) {
-      return document.createOffset((row*bytesPerRow)+col);
+      return document.createOffset(((long) row*bytesPerRow)+col);
     }
 
     public Point locationToGrid(Location loc) {
@@ -303,7 +358,7 @@ public class CharEditor extends TextGrid implements BinaryEditor {
         if (realRow == getRowCount())
           return;
         byte [] b = new byte[bytesPerRow];
-        int bytesRead = document.read(document.createOffset(realRow*bytesPerRow), b);
+        int bytesRead = document.read(document.createOffset((long) realRow*bytesPerRow), b);
         if (bytesRead == -1) {
           column = 0;
           row = realRow;
@@ -390,30 +445,111 @@ public class CharEditor extends TextGrid implements BinaryEditor {
     }
 
     public void typeKeyChar(char keyChar) {
-      if (keyChar != KeyEvent.CHAR_UNDEFINED &&
-          keyChar != KeyEvent.VK_ESCAPE &&
-          keyChar != KeyEvent.VK_ENTER &&
-          keyChar != KeyEvent.VK_DELETE &&
-          keyChar != KeyEvent.VK_BACK_SPACE) {
+      if (isTypeable(keyChar)) {
         int byteValue = (byte) keyChar;
-        if (byteValue >=0 && byteValue <= 0xFF) {
-          // There is a selection ... delete it first
-          if (selection != null && selection.length() > 0) {
-            int selectionLength = (int) selection.length();
-            moveTo(selection.getEndLocation().addOffset(-selectionLength));
+        // There is a selection ... replace it in a single change
+        if (selection != null && selection.length() > 0) {
+          long selectionLength = selection.length();
+          moveTo(selection.getEndLocation().addOffset(-selectionLength));
+          getDocument().beginBatch();
+          try {
             getDocument().delete(selection.getStartLocation(), selectionLength);
-            clearMark();
+            getDocument().insert(localTextGridModel.gridToLocation(getCurrentRow(),getCurrentColumn()),byteValue);
+          }
+          finally {
+            getDocument().commit();
           }
+          clearMark();
+        }
+        else {
           getDocument().insert(localTextGridModel.gridToLocation(getCurrentRow(),getCurrentColumn()),byteValue);
-          right();
-          setSelectionSpan(null);
         }
+        right();
+        setSelectionSpan(null);
+      }
+    }
+
+    /**
+     * Replace the selection with, or insert, the characters read from
+     * reader, as a single change. Characters that could not be typed are
+     * skipped. The characters are read a buffer at a time, so the whole 
+     * paste is never held in memory.
+     */
+    public void paste(Reader reader) throws IOException {
+      char [] chars = new char[PASTE_BUFFER_SIZE];
+      byte [] buffer = new byte[PASTE_BUFFER_SIZE];
+      long offset = -1;
+      document.beginBatch();
+      try {
+        int n;
+        while ((n = reader.read(chars, 0, chars.length)) >= 0) {
+          int count = 0;
+          for (int i=0; i<n; i++) {
+            if (isTypeable(chars[i]))
+              buffer[count++] = (byte) chars[i];
+          }
+          if (count == 0)
+            continue;
+
+          if (offset < 0)
+            offset = startPaste();
+          document.insert(document.createOffset(offset), buffer, 0, count);
+          offset += count;
+        }
+      }
+      finally {
+        document.commit();
       }
+      if (offset > 0)
+        moveTo(document.createOffset(offset - 1));
+    }
+
+    /**
+     * Replace the selection with a snapshot, or insert it, as a single
+     * change. No bytes are copied.
+     */
+    public void paste(Snapshot snapshot) {
+      if (snapshot.length() == 0)
+        return;
+
+      long offset;
+      document.beginBatch();
+      try {
+        offset = startPaste();
+        document.insert(document.createOffset(offset), snapshot);
+      }
+      finally {
+        document.commit();
+      }
+      moveTo(document.createOffset(offset + snapshot.length() - 1));
+    }
+
+    /**
+     * Delete the selection, if any, and return the offset of the first 
+     * pasted byte.
+     */
+    private long startPaste() {
+      if (selection != null && selection.length() > 0) {
+        long offset = selection.getStartLocation().getOffset();
+        document.delete(selection.getStartLocation(), selection.length());
+        clearMark();
+        return offset;
+      }
+      return localTextGridModel.gridToLocation(getCurrentRow(),getCurrentColumn()).getOffset();
+    }
+
+    private boolean isTypeable(char keyChar) {
+      return keyChar != KeyEvent.CHAR_UNDEFINED &&
+             keyChar != KeyEvent.VK_ESCAPE &&
+             keyChar != KeyEvent.VK_ENTER &&
+             keyChar != KeyEvent.VK_DELETE &&
+             keyChar != KeyEvent.VK_BACK_SPACE &&
+             (byte) keyChar >= 0;
     }
 
     public void deleteSelection(ByteSpan selection) {
       moveTo(selection.getEndLocation().addOffset(-selection.length()));
-      getDocument().delete(selection.getStartLocation(), (int) selection.length());
+      getDocument().delete(selection.getStartLocation(), selection.length());
       clearMark();
       setSelectionSpan(null);
     }
@@ -446,7 +582,7 @@ public class CharEditor extends TextGrid implements BinaryEditor {
           case KeyEvent.VK_DELETE:
             if (selection != null && selection.length() > 0) {
               moveTo(selection.getEndLocation().addOffset(-selection.length()));
-              getDocument().delete(selection.getStartLocation(), (int) selection.length());
+              getDocument().delete(selection.getStartLocation(), selection.length());
               clearMark();
               setSelectionSpan(null);
             } else {
@@ -470,13 +606,27 @@ public class CharEditor extends TextGrid implements BinaryEditor {
       // The document has changed
       if (arg instanceof ContentChangedEvent) {
         ContentChangedEvent e = (ContentChangedEvent) arg;
+        ByteSpan span = e.getSpan();
+        int firstRow = (int) (span.getStartLocation().getOffset()/bytesPerRow);
+
+        // Only writes leave the rows that follow unchanged
+        int lastRow = TextGridModelEvent.LAST_ROW;
+        int type = TextGridModelEvent.INSERT;
+        if (e.getType() == ContentChangedEvent.WRITTEN) {
+          lastRow = (int) (span.getEndLocation().getOffset()/bytesPerRow);
+          type = TextGridModelEvent.UPDATE;
+        }
+        else if (e.getType() == ContentChangedEvent.DELETED) {
+          type = TextGridModelEvent.DELETE;
+        }
+
         localTextGridModel.fireTextGridModelEvent(
           new TextGridModelEvent(localTextGridModel,
-                                 TextGridModelEvent.FIRST_ROW,
+                                 firstRow,
                                  TextGridModelEvent.FIRST_COLUMN,
-                                 TextGridModelEvent.LAST_ROW,
+                                 lastRow,
                                  TextGridModelEvent.LAST_COLUMN,
-                                 TextGridModelEvent.UPDATE));
+                                 type));
       }
     }
   }
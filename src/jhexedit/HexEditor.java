@@ -57,6 +57,12 @@ public class HexEditor extends JPanel implements BinaryEditor, Scrollable {
   protected TextGrid   addressComponent;
   protected ByteEditor hexEditor;
   protected CharEditor asciiEditor;
+
+  // The editors are windows onto their documents, scrolled together by 
+  // row with this scroll bar, so that their height does not grow with the
+  // document
+  protected JScrollBar scrollBar;
+  private RowPrefetcher rowPrefetcher;
   
   private HexEditorListener hexEditorListener;
   private ASCIIEditorListener asciiEditorListener;
@@ -76,6 +82,18 @@ public class HexEditor extends JPanel implements BinaryEditor, Scrollable {
     hexEditor     = new ByteEditor(document);
     asciiEditor   = new CharEditor(document);
     addressComponent = new TextGrid(new AddressTextGridModel());
+
+    scrollBar = new JScrollBar(JScrollBar.VERTICAL) {
+      public int getBlockIncrement(int direction) {
+        return Math.max(1, getVisibleAmount() - 1);
+      }
+    };
+    addressComponent.setRowModel(scrollBar.getModel());
+    hexEditor.setRowModel(scrollBar.getModel());
+    asciiEditor.setRowModel(scrollBar.getModel());
+    rowPrefetcher = new RowPrefetcher(scrollBar.getModel(), hexEditor,
+                                      new TextGrid[] {addressComponent, hexEditor, asciiEditor});
+    addMouseWheelListener(new ScrollWheelListener());
     
     hexEditorListener = new HexEditorListener();
     asciiEditorListener = new ASCIIEditorListener();
@@ -123,6 +141,13 @@ public class HexEditor extends JPanel implements BinaryEditor, Scrollable {
     gbc.insets.right = SPACER_WIDTH;
     gridbag.setConstraints(asciiEditor,gbc);
     add(asciiEditor);
+
+    gbc.insets.right = 0;
+    gbc.weightx = 1.0;
+    gbc.fill = GridBagConstraints.VERTICAL;
+    gbc.anchor = GridBagConstraints.EAST;
+    gridbag.setConstraints(scrollBar,gbc);
+    add(scrollBar);
   }
 
   public Font getFont() {
@@ -206,7 +231,7 @@ public class HexEditor extends JPanel implements BinaryEditor, Scrollable {
   }
           
   public boolean getScrollableTracksViewportHeight() {
-    return false;
+    return true;
   }
   
   public boolean getScrollableTracksViewportWidth() {
@@ -215,9 +240,9 @@ public class HexEditor extends JPanel implements BinaryEditor, Scrollable {
 
   ////////////////////////////////
   // ADDRESS COMPONENT GRID MODEL
-  private class AddressTextGridModel implements TextGridModel {
-    private int lastRowIndex = 0;
-    private String lastRowText = null;
+  private class AddressTextGridModel implements TextGridRowModel {
+    private int lastRowIndex = -1;
+    private char [] rowText = new char[0];
     private LinkedList listeners;
     
     public AddressTextGridModel() {
@@ -225,7 +250,7 @@ public class HexEditor extends JPanel implements BinaryEditor, Scrollable {
     }
     
     public int getColumnCount() {
-      return getRowText(0).length();
+      return getAddressWidth() + 1;
     }
     
     public int getRowCount() {
@@ -233,11 +258,11 @@ public class HexEditor extends JPanel implements BinaryEditor, Scrollable {
     }
   
     public char getCharAt(int row, int col) {
-      if (lastRowText == null || lastRowIndex != row ) {
+      if (lastRowIndex != row) {
+        formatRow(row);
         lastRowIndex = row;
-        lastRowText  = getRowText(row);
       }
-      return lastRowText.charAt(col);
+      return rowText[col];
     }
     
     public Color getCharColor(int row, int col) {
@@ -265,17 +290,39 @@ public class HexEditor extends JPanel implements BinaryEditor, Scrollable {
       while(i.hasNext()) {
         TextGridModelListener l = (TextGridModelListener) i.next();
         l.textGridUpdated(e);
-        lastRowIndex = 0;
-        lastRowText = null;
+        lastRowIndex = -1;
       }
     }
 
     public String getRowText(int row) {
-      String maxAddress = Integer.toString(Integer.MAX_VALUE, 16);
-      String result = Integer.toString(row * hexEditor.getBytesPerRow(),16);
-      while (result.length() < maxAddress.length())
-        result = Integer.toString(0,16) + result;
-      return result + ":";
+      formatRow(row);
+      lastRowIndex = row;
+      return new String(rowText);
+    }
+
+    public void getRows(int firstRow, int lastRow, char [] chars, int off, TextGridSpans spans) {
+      int width = getAddressWidth();
+      for (int row = firstRow; row <= lastRow; row++) {
+        formatAddress(row, width, chars, off);
+        spans.add(row, 0, width + 1, Color.BLACK, addressBackground, 0);
+        off += width + 1;
+      }
+    }
+
+    private int getAddressWidth() {
+      return ByteFormat.getAddressWidth(getDocument().length());
+    }
+
+    private void formatRow(int row) {
+      int width = getAddressWidth();
+      if (rowText.length != width + 1)
+        rowText = new char[width + 1];
+      formatAddress(row, width, rowText, 0);
+    }
+
+    private void formatAddress(int row, int width, char [] chars, int off) {
+      ByteFormat.formatAddress((long) row * hexEditor.getBytesPerRow(), width, chars, off);
+      chars[off + width] = ':';
     }
   }
 
@@ -292,13 +339,13 @@ public class HexEditor extends JPanel implements BinaryEditor, Scrollable {
       // Expand the addresses component if needed
       BinaryDocumentEvent bDocEvent = e.getDocumentEvent();
       if (bDocEvent != null && bDocEvent instanceof ContentChangedEvent) {
-        ContentChangedEvent ccEvent = (ContentChangedEvent) bDocEvent;
+        // The address of a row never changes; only rows at the end come and go
         TextGridModelEvent gme = new TextGridModelEvent(addressComponent.getModel(),
-                                     TextGridModelEvent.FIRST_ROW,
+                                     Math.max(0, addressComponent.getRowCount() - 1),
                                      TextGridModelEvent.FIRST_COLUMN,
                                      TextGridModelEvent.LAST_ROW,
                                      TextGridModelEvent.LAST_COLUMN,
-                                     TextGridModelEvent.UPDATE);
+                                     TextGridModelEvent.INSERT);
         ((AddressTextGridModel) addressComponent.getModel()).fireTextGridModelEvent(gme);
       }
       
@@ -311,6 +358,17 @@ public class HexEditor extends JPanel implements BinaryEditor, Scrollable {
     }
   }
   
+  //////////////////////////
+  // Scroll Wheel Listener
+  private class ScrollWheelListener implements MouseWheelListener {
+    public void mouseWheelMoved(MouseWheelEvent e) {
+      int rows = e.getUnitsToScroll();
+      if (e.getScrollType() == MouseWheelEvent.WHEEL_BLOCK_SCROLL)
+        rows = e.getWheelRotation() * scrollBar.getBlockIncrement(e.getWheelRotation());
+      scrollBar.setValue(scrollBar.getValue() + rows);
+    }
+  }
+
   //////////////////////////
   // ASCII Editor Listener
   private class ASCIIEditorListener implements BinaryEditorListener {
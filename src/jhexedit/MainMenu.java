@@ -103,6 +103,9 @@ public class MainMenu extends JMenuBar {
 
     editMenu = new JMenu("Edit");
     editMenu.setMnemonic(KeyEvent.VK_E);
+    editMenu.add(new JMenuItem(new UndoAction()));
+    editMenu.add(new JMenuItem(new RedoAction()));
+    editMenu.addSeparator();
     editMenu.add(new JMenuItem(new CutAction()));
     editMenu.add(new JMenuItem(new CopyAction()));
     editMenu.add(new JMenuItem(new PasteAction()));
@@ -175,6 +178,37 @@ public class MainMenu extends JMenuBar {
     }
   }
 
+  private class UndoAction extends AbstractAction {
+    public UndoAction() {
+      super("Undo");
+      if (!isMacOSX)
+        putValue(MNEMONIC_KEY, new Integer(KeyEvent.VK_U));
+      putValue(ACCELERATOR_KEY, KeyStroke.getKeyStroke(KeyEvent.VK_Z, Toolkit.getDefaultToolkit().getMenuShortcutKeyMask()));
+    }
+
+    public void actionPerformed(ActionEvent event) {
+      Component c = ApplicationFrame.instance().getFocusOwner();
+      if (c instanceof BinaryEditor && ((BinaryEditor) c).getDocument() != null)
+        ((BinaryEditor) c).getDocument().getUndoHistory().undo();
+    }
+  }
+
+  private class RedoAction extends AbstractAction {
+    public RedoAction() {
+      super("Redo");
+      if (!isMacOSX)
+        putValue(MNEMONIC_KEY, new Integer(KeyEvent.VK_R));
+      putValue(ACCELERATOR_KEY, KeyStroke.getKeyStroke(KeyEvent.VK_Z, 
+        Toolkit.getDefaultToolkit().getMenuShortcutKeyMask() | InputEvent.SHIFT_MASK));
+    }
+
+    public void actionPerformed(ActionEvent event) {
+      Component c = ApplicationFrame.instance().getFocusOwner();
+      if (c instanceof BinaryEditor && ((BinaryEditor) c).getDocument() != null)
+        ((BinaryEditor) c).getDocument().getUndoHistory().redo();
+    }
+  }
+
   private class CutAction extends DefaultEditorKit.CutAction {
     public CutAction() {
       putValue(NAME, "Cut");
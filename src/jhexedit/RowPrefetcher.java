@@ -0,0 +1,215 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+
+package jhexedit;
+
+import javax.swing.*;
+import javax.swing.event.*;
+import java.util.concurrent.*;
+
+import jhexedit.bdoc.*;
+import jhexedit.textgrid.*;
+
+/**
+ * Reads ahead of an editor as it scrolls. The prefetcher watches the row
+ * model the editor is scrolled with, and from the direction and speed of 
+ * the scrolling guesses which rows are shown next. Their bytes are read on
+ * a background thread, so that the pages of the file holding them are in 
+ * memory before they are painted, and the next page of rows is then 
+ * formatted into the grids ahead of time, a few rows at a time, on the
+ * event dispatch thread.
+ * Each scroll cancels the prefetch started by the one before.
+ */
+public class RowPrefetcher implements ChangeListener {
+
+  // CONSTANTS
+  // Read as far ahead as the scrolling would go in this many milliseconds
+  private static final long LOOKAHEAD_TIME = 500;
+
+  // But never more than this many screens ahead
+  private static final int MAX_LOOKAHEAD_SCREENS = 16;
+
+  // A pause after which scrolling is taken to have started afresh
+  private static final long PAUSE_TIME = 250;
+
+  // Rows prepared per visit to the event dispatch thread
+  private static final int LAYOUT_SLICE = 8;
+
+  // One low priority thread reads ahead for all of the editors
+  private static final ExecutorService executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+    public Thread newThread(Runnable r) {
+      Thread t = new Thread(r, "Row prefetcher");
+      t.setDaemon(true);
+      t.setPriority(Thread.MIN_PRIORITY);
+      return t;
+    }
+  });
+
+  // PRIVATE MEMBERS
+  private BoundedRangeModel rowModel;
+  private ByteEditor editor;
+  private TextGrid [] grids;
+
+  private int lastRow;
+  private long lastTime;
+  private double velocity;  // rows per millisecond, negative going up
+
+  // The prefetch in progress
+  private ReadAhead readAhead;
+  private Future pending;
+
+  // CONSTRUCTORS
+  /**
+   * Construct a prefetcher that reads ahead of editor, scrolled by 
+   * rowModel, and lays out rows ahead in each of grids.
+   */
+  public RowPrefetcher( BoundedRangeModel rowModel, ByteEditor editor, TextGrid [] grids ) {
+    this.rowModel = rowModel;
+    this.editor   = editor;
+    this.grids    = grids;
+    lastRow = rowModel.getValue();
+    rowModel.addChangeListener(this);
+  }
+
+  // CHANGE LISTENER INTERFACE
+  public void stateChanged( ChangeEvent e ) {
+    int row = rowModel.getValue();
+    if (row == lastRow)
+      return;
+
+    long now = System.currentTimeMillis();
+    long elapsed = Math.max(1, now - lastTime);
+    double v = (double) (row - lastRow) / elapsed;
+    if (elapsed > PAUSE_TIME || v * velocity < 0)
+      velocity = v;
+    else
+      velocity = (velocity + v) / 2;
+    lastRow  = row;
+    lastTime = now;
+
+    prefetch(row);
+  }
+
+  ////// PRIVATE
+  private void cancel() {
+    if (readAhead != null) {
+      readAhead.cancel();
+      pending.cancel(false);
+      readAhead = null;
+      pending   = null;
+    }
+  }
+
+  /**
+   * Start prefetching the rows that scrolling on from row is expected to
+   * show next.
+   */
+  private void prefetch( int row ) {
+    cancel();
+
+    BinaryDocument document = editor.getDocument();
+    if (document == null)
+      return;
+
+    int screen = rowModel.getExtent();
+    long ahead = (long) Math.abs(velocity * LOOKAHEAD_TIME);
+    ahead = Math.max(screen, Math.min(ahead, (long) screen * MAX_LOOKAHEAD_SCREENS));
+
+    final boolean down = (velocity >= 0);
+    long first = (down ? (long) row + screen : row - ahead);
+    long last  = (down ? first + ahead : row) - 1;
+    first = Math.max(first, 0);
+    last  = Math.min(last, editor.getRowCount() - 1);
+    if (first > last)
+      return;
+
+    long bytesPerRow = editor.getBytesPerRow();
+    final ReadAhead r = document.readAhead(document.createOffset(first * bytesPerRow), 
+                                           (last - first + 1) * bytesPerRow);
+
+    // Prepare the screen of rows nearest to the view
+    final int layoutFirst = (int) (down ? first : Math.max(first, last - screen + 1));
+    final int layoutLast  = (int) (down ? Math.min(last, first + screen - 1) : last);
+
+    readAhead = r;
+    pending = executor.submit(new Runnable() {
+      public void run() {
+        r.run();
+        if (!r.isCancelled())
+          SwingUtilities.invokeLater(new LayoutTask(r, layoutFirst, layoutLast, down));
+      }
+    });
+  }
+
+  //////////////////////////
+  // INNER CLASSES
+
+  /**
+   * Prepares rows in the grids, LAYOUT_SLICE at a time and nearest to the 
+   * view first, for as long as its read ahead is the one in progress.
+   */
+  private class LayoutTask implements Runnable {
+    private ReadAhead r;
+    private int first;
+    private int last;
+    private boolean down;
+
+    public LayoutTask( ReadAhead r, int first, int last, boolean down ) {
+      this.r     = r;
+      this.first = first;
+      this.last  = last;
+      this.down  = down;
+    }
+
+    public void run() {
+      if (r != readAhead || first > last)
+        return;
+
+      int sliceFirst = (down ? first : Math.max(first, last - LAYOUT_SLICE + 1));
+      int sliceLast  = (down ? Math.min(last, first + LAYOUT_SLICE - 1) : last);
+      for (int i=0; i<grids.length; i++)
+        grids[i].prepareRows(sliceFirst, sliceLast);
+
+      if (down)
+        first = sliceLast + 1;
+      else
+        last = sliceFirst - 1;
+      SwingUtilities.invokeLater(this);
+    }
+  }
+}
@@ -0,0 +1,272 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+package jhexedit.bdoc;
+
+/**
+ * The offsets of the PositionAnchors of a document, kept in offset order.
+ * <p>
+ * The offsets are held in a gap buffer of primitive longs. Offsets before
+ * the gap are absolute; offsets after the gap are relative, and a single
+ * delta is added to all of them. The gap is kept at the point of the last
+ * edit, so inserting or deleting bytes there shifts every anchor that
+ * follows by changing the delta alone. Moving the gap elsewhere costs one
+ * step per anchor crossed, which is rarely more than a handful while typing.
+ * <p>
+ * Each anchor knows its slot in the buffer, so its offset is found in
+ * constant time, and the anchor at an offset is found with a binary search.
+ * Removed anchors leave their slot empty until enough slots are empty to
+ * make compacting the buffer worthwhile.
+ */
+class AnchorIndex {
+
+  // CONSTANTS
+  private static final int INITIAL_CAPACITY = 16;
+
+  // PRIVATE MEMBERS
+  private long [] offsets;
+  private PositionAnchor [] anchors;
+  private int gapStart;   // first slot of the gap
+  private int gapEnd;     // first slot after the gap
+  private long delta;     // added to the offsets after the gap
+  private int size;       // anchors in the index
+  private int empty;      // emptied slots outside the gap
+
+  // CONSTRUCTORS
+  public AnchorIndex() {
+    offsets = new long[INITIAL_CAPACITY];
+    anchors = new PositionAnchor[INITIAL_CAPACITY];
+    gapStart = 0;
+    gapEnd   = INITIAL_CAPACITY;
+  }
+
+  // GETTERS
+  /**
+   * Returns the number of anchors in the index.
+   */
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Returns the offset of anchor, or -1 if anchor is not in the index.
+   */
+  public long getOffset(PositionAnchor anchor) {
+    int slot = anchor.slot;
+    if (slot < 0)
+      return -1;
+    return slot < gapStart ? offsets[slot] : offsets[slot] + delta;
+  }
+
+  /**
+   * Returns a shared (not exclusive) anchor at offset, or null if there is
+   * none.
+   */
+  public PositionAnchor get(long offset) {
+    int slot = lowerBound(0, gapStart, offset, 0);
+    for (; slot < gapStart && offsets[slot] == offset; slot++)
+      if (anchors[slot] != null && !anchors[slot].isExclusive())
+        return anchors[slot];
+
+    slot = lowerBound(gapEnd, offsets.length, offset, delta);
+    for (; slot < offsets.length && offsets[slot] + delta == offset; slot++)
+      if (anchors[slot] != null && !anchors[slot].isExclusive())
+        return anchors[slot];
+
+    return null;
+  }
+
+  // MODIFIERS
+  /**
+   * Add anchor to the index, at offset.
+   */
+  public void add(PositionAnchor anchor, long offset) {
+    moveGap(offset);
+    if (gapStart == gapEnd)
+      grow();
+    offsets[gapStart] = offset;
+    anchors[gapStart] = anchor;
+    anchor.slot = gapStart++;
+    size++;
+  }
+
+  /**
+   * Remove anchor from the index. 
+   */
+  public void remove(PositionAnchor anchor) {
+    int slot = anchor.slot;
+    if (slot < 0)
+      return;
+    anchors[slot] = null;
+    anchor.slot = -1;
+    size--;
+
+    // Slots next to the gap simply join it
+    if (slot == gapStart-1)
+      gapStart--;
+    else if (slot == gapEnd)
+      gapEnd++;
+    else {
+      empty++;
+      if (empty > INITIAL_CAPACITY && empty > size)
+        compact();
+    }
+  }
+
+  /**
+   * Move anchor to offset. Moving an anchor a short distance takes constant
+   * time and allocates nothing.
+   */
+  public void move(PositionAnchor anchor, long offset) {
+    int slot = anchor.slot;
+    if (slot >= 0 && slot == gapStart-1 && (slot == 0 || offsets[slot-1] <= offset) &&
+        (gapEnd == offsets.length || offset < offsets[gapEnd] + delta)) {
+      // The anchor is last before the gap, and stays in order there
+      offsets[slot] = offset;
+      return;
+    }
+    remove(anchor);
+    add(anchor, offset);
+  }
+
+  /**
+   * Shift the anchors after offset by len bytes, following an insertion.
+   */
+  public void inserted(long offset, long len) {
+    moveGap(offset);
+    delta += len;
+  }
+
+  /**
+   * Shift the anchors after offset by len bytes towards the start, following
+   * a deletion. Anchors within the deleted bytes move to offset.
+   */
+  public void deleted(long offset, long len) {
+    moveGap(offset);
+    while (gapEnd < offsets.length && offsets[gapEnd] + delta <= offset + len) {
+      offsets[gapEnd] = offset - delta;
+      moveGapForward();
+    }
+    delta -= len;
+  }
+
+  ////// PRIVATE
+  /**
+   * Move the gap so that the anchors before it are at or before offset, and
+   * the anchors after it are after offset.
+   */
+  private void moveGap(long offset) {
+    while (gapStart > 0 && offsets[gapStart-1] > offset) {
+      gapStart--;
+      gapEnd--;
+      offsets[gapEnd] = offsets[gapStart] - delta;
+      move(gapStart, gapEnd);
+    }
+    while (gapEnd < offsets.length && offsets[gapEnd] + delta <= offset)
+      moveGapForward();
+  }
+
+  private void moveGapForward() {
+    offsets[gapStart] = offsets[gapEnd] + delta;
+    move(gapEnd, gapStart);
+    gapStart++;
+    gapEnd++;
+  }
+
+  private void move(int from, int to) {
+    PositionAnchor anchor = anchors[from];
+    anchors[from] = null;
+    anchors[to] = anchor;
+    if (anchor != null)
+      anchor.slot = to;
+  }
+
+  /**
+   * Returns the first slot in [from, to) whose offset, plus shift, is at 
+   * least offset.
+   */
+  private int lowerBound(int from, int to, long offset, long shift) {
+    while (from < to) {
+      int mid = (from + to) >>> 1;
+      if (offsets[mid] + shift < offset)
+        from = mid + 1;
+      else
+        to = mid;
+    }
+    return from;
+  }
+
+  private void grow() {
+    resize(2*offsets.length);
+  }
+
+  private void compact() {
+    resize(Math.max(INITIAL_CAPACITY, 2*size));
+  }
+
+  /**
+   * Copy the live anchors into buffers of the given capacity, leaving the 
+   * gap where it was.
+   */
+  private void resize(int capacity) {
+    long [] offsets = new long[capacity];
+    PositionAnchor [] anchors = new PositionAnchor[capacity];
+
+    int start = 0;
+    for (int i=0; i<gapStart; i++) {
+      if (this.anchors[i] != null) {
+        offsets[start] = this.offsets[i];
+        anchors[start] = this.anchors[i];
+        anchors[start].slot = start++;
+      }
+    }
+    int end = capacity;
+    for (int i=this.offsets.length-1; i>=gapEnd; i--) {
+      if (this.anchors[i] != null) {
+        offsets[--end] = this.offsets[i];
+        anchors[end] = this.anchors[i];
+        anchors[end].slot = end;
+      }
+    }
+
+    this.offsets = offsets;
+    this.anchors = anchors;
+    gapStart = start;
+    gapEnd   = end;
+    empty    = 0;
+  }
+}
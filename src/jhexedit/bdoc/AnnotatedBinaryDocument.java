@@ -69,6 +69,13 @@ public class AnnotatedBinaryDocument extends BinaryDocument {
     properties = new HashMap();
   }
   
+  public AnnotatedBinaryDocument(File file, boolean readOnly, int openMode) throws IOException {
+    super(file, readOnly, openMode);
+    indexMap = new TreeMap();
+    keyMap = new HashMap();
+    properties = new HashMap();
+  }
+  
   public AnnotatedBinaryDocument(File file, boolean readOnly, boolean loadAnnotations) throws IOException {
     super();
     // TODO: Set the file and length. Clear isNew
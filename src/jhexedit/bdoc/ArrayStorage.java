@@ -0,0 +1,192 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+
+package jhexedit.bdoc;
+
+import java.io.DataInput;
+import java.io.IOException;
+
+/**
+ * An append-only Storage held on the heap. The bytes are kept in fixed size
+ * chunks, so the storage can grow well beyond the 2 GB limit of a single
+ * array, and growing it never copies bytes that have already been stored.
+ * ArrayStorages hold the contents of documents read fully into memory, as
+ * well as the add buffer of every PieceTable.
+ * <p>
+ * An ArrayStorage may account for its chunks as pinned memory in a PageCache,
+ * so that the bytes it holds count towards the cache's budget.
+ */
+class ArrayStorage implements Storage {
+
+  // CONSTANTS
+  public static final int CHUNK_BITS = 16;
+  public static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+  private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+  // PRIVATE MEMBERS
+  private byte [][] chunks;
+  private long occupied;
+  private PageCache cache;
+  private long allocated;
+
+  // CONSTRUCTORS
+  public ArrayStorage() {
+    this(0);
+  }
+
+  /**
+   * Construct a storage with room in its chunk table for capacity bytes.
+   */
+  public ArrayStorage(long capacity) {
+    chunks = new byte[chunksFor(capacity)][];
+    occupied = 0;
+  }
+
+  /**
+   * Construct a storage whose chunks are pinned in cache.
+   */
+  public ArrayStorage(PageCache cache) {
+    this(0);
+    this.cache = cache;
+  }
+
+  // STORAGE INTERFACE
+  public long length() {
+    return occupied;
+  }
+
+  public int read(long pos, byte [] b, int off, int len) {
+    if (pos >= occupied)
+      return 0;
+    if (len > occupied - pos)
+      len = (int) (occupied - pos);
+
+    int copied = 0;
+    while (copied < len) {
+      byte [] chunk = chunks[(int) (pos >>> CHUNK_BITS)];
+      int chunkOffset = (int) pos & CHUNK_MASK;
+      int n = Math.min(len - copied, CHUNK_SIZE - chunkOffset);
+      System.arraycopy(chunk, chunkOffset, b, off + copied, n);
+      copied += n;
+      pos    += n;
+    }
+    return len;
+  }
+
+  /**
+   * Append bytes to the end of the storage.
+   *
+   * @return the offset at which the first appended byte was stored.
+   */
+  public long append(byte [] b, int off, int len) {
+    long pos = occupied;
+    while (len > 0) {
+      byte [] chunk = lastChunk();
+      int chunkOffset = (int) occupied & CHUNK_MASK;
+      int n = Math.min(len, CHUNK_SIZE - chunkOffset);
+      System.arraycopy(b, off, chunk, chunkOffset, n);
+      occupied += n;
+      off += n;
+      len -= n;
+    }
+    return pos;
+  }
+
+  /**
+   * Append len bytes read from in to the end of the storage.
+   *
+   * @return the offset at which the first appended byte was stored.
+   * @throws IOException if the bytes could not be read.
+   */
+  public long append(DataInput in, long len) throws IOException {
+    long pos = occupied;
+    while (len > 0) {
+      byte [] chunk = lastChunk();
+      int chunkOffset = (int) occupied & CHUNK_MASK;
+      int n = (int) Math.min(len, CHUNK_SIZE - chunkOffset);
+      in.readFully(chunk, chunkOffset, n);
+      occupied += n;
+      len -= n;
+    }
+    return pos;
+  }
+
+  /**
+   * Make room in the chunk table for capacity bytes, so that appending up to
+   * capacity bytes never grows the table. Chunks are still allocated only
+   * as they are filled.
+   */
+  public void ensureCapacity(long capacity) {
+    int n = chunksFor(capacity);
+    if (n > chunks.length) {
+      byte [][] chunks = new byte[Math.max(n, 2*this.chunks.length)][];
+      System.arraycopy(this.chunks, 0, chunks, 0, this.chunks.length);
+      this.chunks = chunks;
+    }
+  }
+
+  public void close() {
+    chunks = new byte[4][];
+    occupied = 0;
+    if (cache != null)
+      cache.unpin(allocated);
+    allocated = 0;
+  }
+
+  ////// PRIVATE
+  private static int chunksFor(long capacity) {
+    return (int) Math.max(4, (capacity + CHUNK_MASK) >>> CHUNK_BITS);
+  }
+
+  /**
+   * Returns the chunk into which the next byte is appended, allocating it
+   * if necessary.
+   */
+  private byte [] lastChunk() {
+    int index = (int) (occupied >>> CHUNK_BITS);
+    if (index == chunks.length)
+      ensureCapacity(occupied + 1);
+    if (chunks[index] == null) {
+      chunks[index] = new byte[CHUNK_SIZE];
+      allocated += CHUNK_SIZE;
+      if (cache != null)
+        cache.pin(CHUNK_SIZE);
+    }
+    return chunks[index];
+  }
+}
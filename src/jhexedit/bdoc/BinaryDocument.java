@@ -39,6 +39,10 @@
 package jhexedit.bdoc;
 import  java.util.*;
 import  java.io.*;
+import  java.lang.ref.PhantomReference;
+import  java.lang.ref.ReferenceQueue;
+import  java.lang.ref.WeakReference;
+import  java.nio.file.Files;
 
 /**
  * The BinaryDocument class essentially adds document style operations to
@@ -93,6 +97,13 @@ import  java.io.*;
  * guaranteed not to miss bytes, even if bytes are inserted or removed from earlier
  * in the document. 
  * <p>
+ * Internally, the contents of the document are held in a piece table. The bytes
+ * read from the file are never moved or modified; inserted and written bytes are
+ * appended to a separate buffer, and the document is described as a sequence of
+ * pieces of these two buffers. As a result, inserting or deleting bytes takes time
+ * proportional to the logarithm of the number of edits, not to the length of the
+ * document.
+ * <p>
  * Last, but not least, the current implementation of BinaryDocuments is not thread-safe.
  * Even though multiple cursors can be created, please resist the temptation to modify
  * the documents from several concurrently running threads.
@@ -101,16 +112,61 @@ import  java.io.*;
  */
 public class BinaryDocument extends Observable {
 
+  // CONSTANTS
+  /** Open mode: read the whole file into memory. */
+  public static final int READ_INTO_MEMORY = 0;
+  /** Open mode: map the file into memory, and read it on demand. */
+  public static final int MEMORY_MAPPED    = 1;
+  /** Open mode: read the file on demand through the shared PageCache. */
+  public static final int PAGED            = 2;
+
+  /** Save mode: write the modified parts of the file in place. */
+  public static final int SAVE_IN_PLACE    = 0;
+  /** Save mode: write a new file, and rename it over the old one. */
+  public static final int SAVE_ATOMIC      = 1;
+
   // PRIVATE MEMBERS
   private File file;
   private boolean readOnly;
   private boolean modified;
   
-  private byte [] data;
-  private int occupied;
+  private PieceTable pieces;
+  private int openMode;
+  private int saveMode;
+  private int modificationCount;
+
+  // The anchors of positions, in offset order.
+  private AnchorIndex anchors;
+
+  // Phantom references to the positions in use, in a doubly linked list.
+  // Unreachable positions are queued, and their anchors released.
+  private ReferenceQueue positionQueue = new ReferenceQueue();
+  private PositionReference positionReferences;
+
+  private UndoHistory undoHistory = new UndoHistory(this);
+
+  // Bytes kept after the storage they came from was overwritten or closed,
+  // for the undo history, and for pieces inserted from other documents.
+  private SpillStorage retained;
+
+  // Snapshots, and documents into which snapshots of other documents were
+  // inserted, may refer to the storages of any document. They are weakly
+  // held here, and told to copy the bytes they refer to before a document
+  // overwrites or closes a storage.
+  private static final LinkedList sharers = new LinkedList();
+  private static int sharersPruned;
+  private boolean sharing;
 
-  // Used for O(1) access to positions.
-  private HashMap anchor2Offset;
+  // Unreachable snapshots are queued, and the bytes they retained released.
+  private static final ReferenceQueue snapshotQueue = new ReferenceQueue();
+
+  // The edits made since beginBatch() are notified as a single change on
+  // commit(): the bytes from batchStart up to the last batchTail bytes of
+  // the document, which have not changed since batchPieces were taken.
+  private int batchDepth;
+  private PieceTable.Pieces batchPieces;
+  private long batchStart;
+  private long batchTail;
   
   // CONSTRUCTORS
   /**
@@ -124,10 +180,9 @@ public class BinaryDocument extends Observable {
     readOnly = false;  
     modified = false;
     
-    data = new byte[256];
-    occupied = 0;    
+    pieces = new PieceTable(new ArrayStorage(), new ArrayStorage());
 
-    anchor2Offset = new HashMap();
+    anchors = new AnchorIndex();
   }
 
   /**
@@ -143,10 +198,9 @@ public class BinaryDocument extends Observable {
     readOnly = false;  
     modified = false;
     
-    data = new byte[capacity];
-    occupied = 0;    
+    pieces = new PieceTable(new ArrayStorage(), new ArrayStorage(capacity));
 
-    anchor2Offset = new HashMap();
+    anchors = new AnchorIndex();
   }
 
   /**
@@ -170,17 +224,47 @@ public class BinaryDocument extends Observable {
    * @throws IOException if an exception occurs while reading the file.
    */
   public BinaryDocument( File file, boolean readOnly ) throws IOException {
+    this( file, readOnly, READ_INTO_MEMORY );
+  }
+
+  /**
+   * Construct a binary document from a file, using the specified open mode.
+   * With READ_INTO_MEMORY the entire file is read before the constructor
+   * returns. With MEMORY_MAPPED the file is mapped into memory and its bytes
+   * are only read as they are accessed, so that opening a file takes the same
+   * time regardless of its size. PAGED is like MEMORY_MAPPED, but the file is
+   * read in pages which are held by the shared PageCache, as are any bytes
+   * inserted or written to the document. In both of the latter modes the file
+   * must not be modified while the document is open, except by saving the
+   * document.
+   *
+   * @param file The file to open.
+   * @param readOnly True if the document should be opened in read-only mode.
+   * @param openMode READ_INTO_MEMORY, MEMORY_MAPPED or PAGED.
+   * @throws IOException if an exception occurs while reading the file.
+   */
+  public BinaryDocument( File file, boolean readOnly, int openMode ) throws IOException {
     this.file     = file;
     this.readOnly = readOnly;
     this.modified = false;
+    this.openMode = openMode;
 
-    anchor2Offset = new HashMap();
+    anchors = new AnchorIndex();
     
+    if (openMode == MEMORY_MAPPED || openMode == PAGED) {
+      pieces = openPieces(file, openMode);
+      return;
+    }
+
     RandomAccessFile ioFile = new RandomAccessFile( file, "r" );
-    occupied = (int) ioFile.length();
-    data = new byte[occupied + 256];
-    ioFile.read(data);
-    ioFile.close();
+    try {
+      ArrayStorage original = new ArrayStorage(ioFile.length());
+      original.append(ioFile, ioFile.length());
+      pieces = new PieceTable(original, new ArrayStorage());
+    }
+    finally {
+      ioFile.close();
+    }
   }
   
   // SAVE / CLOSE
@@ -190,6 +274,17 @@ public class BinaryDocument extends Observable {
    * This method saves the document back to the file from which it was
    * created. This method can not be called if the document is new or
    * read-only.
+   * <p>
+   * Only the parts of the file that were modified since the document was
+   * opened or last saved are written. Overwriting bytes rewrites just those
+   * bytes, while inserting or deleting bytes rewrites the file from the first
+   * insertion or deletion onwards.
+   * <p>
+   * In the SAVE_ATOMIC save mode, the whole document is instead written to a
+   * temporary file, which then replaces the file, so that a crash during
+   * the save cannot leave a half-written file behind.
+   * <p>
+   * Observers are notified with a DocumentSavedEvent.
    *
    * @throws IOException if an exception occured while writing the file.
    * @throws DocumentSaveException if the document is read-only or if the document is new.
@@ -203,11 +298,7 @@ public class BinaryDocument extends Observable {
       throw new DocumentSaveException(this,
         "Cannot call save() on a new document. Try saveAs(File).");
     
-    RandomAccessFile ioFile = new RandomAccessFile( file, "rw" );
-    ioFile.write(data,0, (int) length());
-    ioFile.close();
-   
-    modified = false;
+    writeTo(file, true, DocumentSavedEvent.SAVE);
   }
 
   /**
@@ -219,13 +310,25 @@ public class BinaryDocument extends Observable {
    * @throws IOException if an exception occured while writing the file.
    */ 
   public void saveAs( File file ) throws IOException {
-    this.file = file;
-          
-    RandomAccessFile ioFile = new RandomAccessFile( file, "rw" );
-    ioFile.write(data,0,(int) length());
-    ioFile.close();    
-          
-    modified = false;
+    writeTo(file, false, DocumentSavedEvent.SAVE_AS);
+  }
+
+  /**
+   * Set how the document is written by save() and saveAs(): SAVE_IN_PLACE 
+   * (the default) or SAVE_ATOMIC.
+   */
+  public void setSaveMode( int saveMode ) {
+    this.saveMode = saveMode;
+  }
+
+  /**
+   * Hint that the document is about to grow to capacity bytes, for example
+   * before a large paste, so that the memory for the new bytes can be 
+   * prepared in one step rather than as the bytes arrive.
+   */
+  public void ensureCapacity( long capacity ) {
+    if (capacity > length())
+      pieces.ensureAddCapacity(capacity - length());
   }
 
   /**
@@ -236,9 +339,19 @@ public class BinaryDocument extends Observable {
    * @throws IOException if an exception occured while closing the source file.
    */
   public void close() throws IOException {
-    data     = null;
-    occupied = 0;
+    PieceTable pieces = this.pieces;
+    this.pieces = new PieceTable(new ArrayStorage(), new ArrayStorage());
     modified = false;
+    modificationCount++;
+    releaseShared(pieces.getOriginal());
+    releaseShared(pieces.getAdd());
+    undoHistory.close();
+    pieces.close();
+    if (retained != null) {
+      releaseShared(retained);
+      retained.close();
+      retained = null;
+    }
   }
   
   // GETTERS
@@ -247,7 +360,7 @@ public class BinaryDocument extends Observable {
    * Returns the length of document.
    */
   public long length() {
-    return occupied;
+    return pieces.length();
   }
 
   /**
@@ -257,6 +370,36 @@ public class BinaryDocument extends Observable {
     return readOnly;
   }
 
+  /**
+   * Returns the mode in which the document was opened: READ_INTO_MEMORY,
+   * MEMORY_MAPPED or PAGED. New documents are held in memory.
+   */
+  public int getOpenMode() {
+    return openMode;
+  }
+
+  /**
+   * Returns the save mode: SAVE_IN_PLACE or SAVE_ATOMIC.
+   */
+  public int getSaveMode() {
+    return saveMode;
+  }
+
+  /**
+   * Returns the history of edits, which can be used to undo and redo them.
+   */
+  public UndoHistory getUndoHistory() {
+    return undoHistory;
+  }
+
+  /**
+   * Returns the number of anchors the document maintains for its positions
+   * and cursors. Positions at the same offset may share an anchor.
+   */
+  public int getAnchorCount() {
+    return anchors.size();
+  }
+
   /**
    * Returns true if the document is new, and has not yet been saved.
    */
@@ -289,23 +432,12 @@ public class BinaryDocument extends Observable {
    * @return a new postion that begins at the specified location.
    */ 
   public Position createPosition(long offset) {
-    Long _offset = new Long(offset);
-    PositionAnchor anchor = null; 
-    
-    Set entries = anchor2Offset.entrySet();
-    Iterator i = entries.iterator();
-
-    while(i.hasNext()) {
-      Map.Entry entry = (Map.Entry) i.next();
-      if ( entry.getValue().equals(_offset) ) {
-        anchor = (PositionAnchor) entry.getKey();
-        break;
-      }
-    }
+    releaseUnreachablePositions();
+    PositionAnchor anchor = anchors.get( offset );
   
     if (anchor == null) {
       anchor = new PositionAnchor( this );
-      anchor2Offset.put( anchor, _offset );
+      anchors.add( anchor, offset );
     }
     
     return new Position(this, anchor);  
@@ -329,7 +461,7 @@ public class BinaryDocument extends Observable {
    * @return a new cursor who's position begins at the specified location.
    */
   public Cursor createCursor(Location loc) {
-    return new Cursor(createPosition(loc.getOffset()));
+    return new Cursor(createExclusivePosition(loc.getOffset()));
   }
    
   // READ OPERATIONS
@@ -348,19 +480,12 @@ public class BinaryDocument extends Observable {
   }
   
   public int read(Location loc, byte [] b, int off, int len) {
-    long offset = loc.getOffset();
-    int bytesRemaining = (int) (length() - offset);
+    int bytesRead = pieces.read( loc.getOffset(), b, off, len );
     
-    if (len > bytesRemaining)
-      len = bytesRemaining;
-    
-    if (len < 1)
+    if (bytesRead < 1)
       return -1;
-    
-    for (int i=0; i<len; i++)
-      b[off+i] = data[(int) (offset+i)];
 
-    return len;    
+    return bytesRead;    
   }
 
   // WRITE OPERATIONS  
@@ -376,28 +501,46 @@ public class BinaryDocument extends Observable {
   
   public void write(Location loc, byte [] b, int off, int len) {
     modified = true;
+    modificationCount++;
     
     long offset = loc.getOffset();
-    int bytesRemaining = (int) (length() - offset);
+    long editOffset = Math.min(offset, length());
 
-    if (len > bytesRemaining) {
-      if ((int) offset + len >= data.length)
-        expandBuffer(((int) offset + len) - data.length);
-      occupied += len - bytesRemaining; 
-    }
+    PieceTable.Pieces removed = pieces.slice( editOffset, offset + len - editOffset );
+    
+    pieces.write( offset, b, off, len );
+    PieceTable.Pieces inserted = pieces.slice( editOffset, offset + len - editOffset );
 
-    byte[] oldContent = new byte[len];
+    notifyContentChanged( new ContentChangedEvent( this, new ByteSpan( loc, loc.addOffset(len-1) ),
+                                                   ContentChangedEvent.WRITTEN, 
+                                                   editOffset, removed, inserted ) );
+  }
+  
+  /**
+   * Overwrite the bytes at loc with a snapshot, extending the document as 
+   * necessary. The snapshot may have been taken from another document. No 
+   * bytes are copied.
+   */
+  public void write(Location loc, Snapshot snapshot) {
+    long len = snapshot.length();
+    if (len == 0)
+      return;
 
-    for (int i = 0; i < len; i++)
-      oldContent[i] = data[(int) (offset+i)];
+    modified = true;
+    modificationCount++;
     
-    for (int i=0; i<len; i++)
-      data[(int) offset + i] = b[off+i];
+    long offset = loc.getOffset();
+    long editOffset = Math.min(offset, length());
 
-    setChanged();
-    notifyObservers( new ContentChangedEvent( this, new ByteSpan( loc, loc.addOffset(len-1) ),
-                                              ContentChangedEvent.WRITTEN, oldContent ) );
-    clearChanged();
+    PieceTable.Pieces removed = pieces.slice( editOffset, offset + len - editOffset );
+
+    pieces.delete( offset, len );
+    insertPieces( offset, snapshot );
+    PieceTable.Pieces inserted = pieces.slice( editOffset, offset + len - editOffset );
+
+    notifyContentChanged( new ContentChangedEvent( this, new ByteSpan( loc, loc.addOffset(len-1) ),
+                                                   ContentChangedEvent.WRITTEN, 
+                                                   editOffset, removed, inserted ) );
   }
   
   // INSERT OPERATIONS
@@ -413,105 +556,537 @@ public class BinaryDocument extends Observable {
   
   public void insert(Location loc, byte [] b, int off, int len) {
     modified = true;
+    modificationCount++;
     
     long offset = loc.getOffset();
-    int spaceRemaining = (int) (data.length - length());
+    long editOffset = Math.min(offset, length());
+    pieces.insert( offset, b, off, len );
+    releaseUnreachablePositions();
+    anchors.inserted( offset, len );
+    PieceTable.Pieces inserted = pieces.slice( editOffset, offset + len - editOffset );
 
-    if (spaceRemaining < len)
-      expandBuffer( len - spaceRemaining );
+    notifyContentChanged( new ContentChangedEvent( this, new ByteSpan( loc, loc.addOffset(len-1) ),
+                                                   ContentChangedEvent.INSERTED,
+                                                   editOffset, PieceTable.Pieces.EMPTY, inserted ) );
+  }
 
-    for (int i=(int) length()-1; i>=(int) offset; i--)
-      data[i+len] = data[i];
-    occupied += len;
+  /**
+   * Insert a snapshot at loc. The snapshot may have been taken from another
+   * document. No bytes are copied.
+   */
+  public void insert(Location loc, Snapshot snapshot) {
+    long len = snapshot.length();
+    if (len == 0)
+      return;
 
-    for (int i=0; i<len; i++)
-      data[(int) offset + i] = b[off + i];
-    
-    Vector anchors = new Vector( anchor2Offset.keySet() );
-    HashMap anchor2Offset = new HashMap(2*this.anchor2Offset.size() +1);
-    
-    for (int i=0; i<anchors.size(); i++) {
-      PositionAnchor anchor = (PositionAnchor) anchors.get(i);
-      Long _offset = new Long(anchor.getOffset());
-      if (offset < _offset.longValue())
-        _offset = new Long(_offset.longValue() + len);
-      anchor2Offset.put(anchor,_offset);
-    }   
+    modified = true;
+    modificationCount++;
 
-    this.anchor2Offset = anchor2Offset;
+    long offset = loc.getOffset();
+    long editOffset = Math.min(offset, length());
+    insertPieces( offset, snapshot );
+    releaseUnreachablePositions();
+    anchors.inserted( offset, len );
+    PieceTable.Pieces inserted = pieces.slice( editOffset, offset + len - editOffset );
 
-    setChanged();
-    notifyObservers( new ContentChangedEvent( this, new ByteSpan( loc, loc.addOffset(len-1) ),
-                                              ContentChangedEvent.INSERTED, null ) );
-    clearChanged();
+    notifyContentChanged( new ContentChangedEvent( this, new ByteSpan( loc, loc.addOffset(len-1) ),
+                                                   ContentChangedEvent.INSERTED,
+                                                   editOffset, PieceTable.Pieces.EMPTY, inserted ) );
   }
 
   // DELETE
   public int delete(Location loc, int len) {
+    return (int) delete( loc, (long) len );
+  }
+
+  public long delete(Location loc, long len) {
     modified = true;
+    modificationCount++;
 
     long offset = loc.getOffset();
-    int bytesRemaining = (int) (length() - offset);
+    long bytesRemaining = length() - offset;
 
     if (len > bytesRemaining)
-      len = bytesRemaining;
-
-    byte[] oldContent = new byte[len];
+      len = Math.max(bytesRemaining, 0);
 
-    for (int i = 0; i < len; i++)
-      oldContent[i] = data[(int) (offset + i)];
+    // The event copies the old content from these pieces only if asked to
+    PieceTable.Pieces removed = pieces.slice( offset, len );
 
-    occupied -= len;
+    pieces.delete( offset, len );
+    releaseUnreachablePositions();
+    anchors.deleted( offset, len );
 
-    for (int i=(int) offset; i<(int) length(); i++)
-      data[i] = data[i + len];
+    notifyContentChanged( new ContentChangedEvent( this, new ByteSpan( loc, loc.addOffset(len-1) ),
+                                                   ContentChangedEvent.DELETED,
+                                                   offset, removed, PieceTable.Pieces.EMPTY ) );
     
-    Vector anchors = new Vector( anchor2Offset.keySet() );
-    HashMap anchor2Offset = new HashMap(2*this.anchor2Offset.size() +1);
-    
-    for (int i=0; i<anchors.size(); i++) {
-      PositionAnchor anchor = (PositionAnchor) anchors.get(i);
-      Long _offset = new Long(anchor.getOffset());
-      if (offset < _offset.longValue()) {
-        if (len < _offset.longValue() - offset )        
-          _offset = new Long(_offset.longValue() - len);
-        else
-          _offset = new Long(offset);
-      }
-      anchor2Offset.put(anchor,_offset);
-    }   
+    return len;
+  }
 
-    this.anchor2Offset = anchor2Offset;
+  // SNAPSHOTS
+  /**
+   * Take a snapshot of up to len bytes at loc, to be inserted later, into 
+   * this or another document. No bytes are copied.
+   */
+  public Snapshot snapshot(Location loc, long len) {
+    releaseUnreachableSnapshots();
+    Snapshot snapshot = new Snapshot( this, pieces.slice( loc.getOffset(), len ) );
+    share( new SnapshotReference(snapshot, snapshotQueue) );
+    return snapshot;
+  }
 
-    setChanged();
-    notifyObservers( new ContentChangedEvent( this, new ByteSpan( loc, loc.addOffset(len-1) ),
-                                              ContentChangedEvent.DELETED, oldContent ) );
-    clearChanged();
+  public Snapshot snapshot(ByteSpan span) {
+    return snapshot( span.getStartLocation(), span.length() );
+  }
+
+  /**
+   * Returns a read ahead of the len bytes starting at loc, as they are now,
+   * to be run on a background thread before the bytes are needed.
+   */
+  public ReadAhead readAhead(Location loc, long len) {
+    return new ReadAhead( pieces.slice( loc.getOffset(), len ) );
+  }
+
+  // BATCHES
+  /**
+   * Start a batch of edits. Observers are not told of the edits made until
+   * the matching call to commit(), which notifies them of a single change
+   * covering all of them, and records them as a single unit of the undo 
+   * history. Batches may be nested, in which case only the outermost
+   * commit() notifies.
+   */
+  public void beginBatch() {
+    if (batchDepth++ == 0) {
+      batchPieces = pieces.slice( 0, length() );
+      batchStart  = -1;
+      batchTail   = Long.MAX_VALUE;
+    }
+  }
+
+  /**
+   * End a batch of edits started with beginBatch(). Should be called from
+   * a finally block, since the edits made so far are kept regardless.
+   *
+   * @throws IllegalStateException if no batch was started.
+   */
+  public void commit() {
+    if (batchDepth == 0)
+      throw new IllegalStateException("No batch to commit");
+    if (--batchDepth > 0)
+      return;
+
+    PieceTable.Pieces before = batchPieces;
+    batchPieces = null;
+    if (batchStart < 0)
+      return;
+
+    PieceTable.Pieces removed  = before.slice( batchStart, before.length() - batchTail - batchStart );
+    PieceTable.Pieces inserted = pieces.slice( batchStart, length() - batchTail - batchStart );
     
-    return len;
+    undoHistory.endUnit();
+    notifyContentChanged( batchStart, removed, inserted );
+    undoHistory.endUnit();
   }
 
   ////// PACKAGE PROTECTED
   void removeAnchor( PositionAnchor anchor ) {
-    Long offset = (Long) anchor2Offset.get(anchor);
-    anchor2Offset.remove(anchor);
+    anchors.remove(anchor);
+  }
+
+  /**
+   * Replace len bytes at offset with the given pieces, notifying observers
+   * of a write if the length is unchanged, and of a replacement otherwise. 
+   * Used to undo and redo edits.
+   */
+  void replace( long offset, long len, PieceTable.Pieces with ) {
+    if (len == 0 && with.length() == 0)
+      return;
+
+    modified = true;
+    modificationCount++;
+    releaseUnreachablePositions();
+
+    long withLength = with.length();
+    PieceTable.Pieces removed = pieces.slice( offset, len );
+
+    pieces.delete( offset, len );
+    pieces.insert( offset, with );
+
+    if (len != withLength) {
+      anchors.deleted( offset, len );
+      anchors.inserted( offset, withLength );
+    }
+    notifyContentChanged( offset, removed, with );
+  }
+
+  /**
+   * Copy the bytes of storage, which belongs to another document, that the
+   * document or its undo history refer to, so that storage can be 
+   * overwritten or closed.
+   *
+   * @throws IOException if the bytes could not be copied.
+   */
+  void release( Storage storage ) throws IOException {
+    if (pieces.slice( 0, length() ).refersTo( storage ))
+      pieces.retain( storage, getRetained() );
+    undoHistory.release( storage );
+  }
+
+  /**
+   * Returns the storage to which bytes are copied when the storage they came
+   * from is overwritten or closed.
+   */
+  SpillStorage getRetained() throws IOException {
+    if (retained == null)
+      retained = new SpillStorage();
+    return retained;
+  }
+
+  /**
+   * Returns the pieces of up to len bytes at offset.
+   */
+  PieceTable.Pieces slice( long offset, long len ) {
+    return pieces.slice( offset, len );
+  }
+
+  /**
+   * Read bytes at offset, without allocating a Location.
+   */
+  int read( long offset, byte [] b, int off, int len ) {
+    return pieces.read( offset, b, off, len );
+  }
+
+  /**
+   * Returns a count that changes every time the contents of the document do.
+   */
+  int getModificationCount() {
+    return modificationCount;
   }
 
   long getAnchorOffset( PositionAnchor p ) {
-    Long offset = (Long) anchor2Offset.get(p);
-    if (offset == null) return -1;
-    return offset.longValue();    
+    return anchors.getOffset(p);
   }
 
-  void expandBuffer(int minimum) {
-    int expandBy = (512 < minimum ? minimum : 512);
-    byte [] data = new byte[this.data.length+expandBy];
-    for (int i=0; i<this.data.length; i++)
-      data[i] = this.data[i];
-    this.data = data;
+  /**
+   * Create a Position with an anchor of its own, which can be moved with
+   * Position.moveTo() without affecting any other position.
+   */
+  Position createExclusivePosition( long offset ) {
+    releaseUnreachablePositions();
+    PositionAnchor anchor = new PositionAnchor( this, true );
+    anchors.add( anchor, offset );
+    return new Position(this, anchor);
+  }
+
+  void moveAnchor( PositionAnchor anchor, long offset ) {
+    anchors.move(anchor, offset);
+  }
+
+  PositionReference track( Position position, PositionAnchor anchor ) {
+    PositionReference reference = new PositionReference(position, anchor, positionQueue);
+    reference.next = positionReferences;
+    if (positionReferences != null)
+      positionReferences.previous = reference;
+    positionReferences = reference;
+    return reference;
+  }
+
+  void untrack( PositionReference reference ) {
+    reference.clear();
+    if (reference.previous != null)
+      reference.previous.next = reference.next;
+    else
+      positionReferences = reference.next;
+    if (reference.next != null)
+      reference.next.previous = reference.previous;
+    reference.previous = null;
+    reference.next = null;
+  }
+
+  /**
+   * Returns the number of snapshots and documents held as sharers.
+   */
+  static int getSharerCount() {
+    synchronized (sharers) {
+      return sharers.size();
+    }
+  }
+
+  /**
+   * Queue the reference to snapshot as if the garbage collector had found
+   * it unreachable.
+   */
+  static void enqueue( Snapshot snapshot ) {
+    synchronized (sharers) {
+      Iterator i = sharers.iterator();
+      while (i.hasNext()) {
+        WeakReference reference = (WeakReference) i.next();
+        if (reference.get() == snapshot)
+          reference.enqueue();
+      }
+    }
   }
 
   void rawPrint() {
+    byte [] data = new byte[(int) length()];
+    pieces.read(0, data, 0, data.length);
     System.out.println(new String(data));
   }
+
+  ////// PRIVATE
+  /**
+   * Insert the pieces of snapshot at offset, filling any gap beyond the end
+   * with 0 valued bytes.
+   */
+  private void insertPieces( long offset, Snapshot snapshot ) {
+    // A snapshot of this document may refer to storages of another one, or
+    // to its own temporary file, as well as to those of this document.
+    if (!sharing && refersToOthers( snapshot.getPieces() )) {
+      sharing = true;
+      share( new WeakReference(this) );
+    }
+    
+    long length = length();
+    if (offset > length)
+      pieces.insert( length, PieceTable.Pieces.of( PieceTable.ZEROS, 0, offset - length ) );
+    pieces.insert( offset, snapshot.getPieces() );
+  }
+
+  /**
+   * Returns true if any of the pieces refers to a storage this document
+   * does not own.
+   */
+  private boolean refersToOthers( PieceTable.Pieces pieces ) {
+    PieceTable.PieceIterator i = pieces.iterator();
+    while (i.next()) {
+      if (i.storage != this.pieces.getOriginal() && i.storage != this.pieces.getAdd() &&
+          i.storage != retained && i.storage != PieceTable.ZEROS)
+        return true;
+    }
+    return false;
+  }
+
+  private static void share( WeakReference sharer ) {
+    synchronized (sharers) {
+      // Copying without ever saving or closing would otherwise grow the
+      // list without bound. Pruning whenever it doubled keeps adding a
+      // sharer constant time on average.
+      if (sharers.size() >= 2*Math.max(sharersPruned, 16)) {
+        Iterator i = sharers.iterator();
+        while (i.hasNext()) {
+          Object s = ((WeakReference) i.next()).get();
+          if (s == null || (s instanceof Snapshot && ((Snapshot) s).length() == 0))
+            i.remove();
+        }
+        sharersPruned = sharers.size();
+      }
+      sharers.add( sharer );
+    }
+  }
+
+  /**
+   * Tell the snapshots and the other documents that may refer to storage to
+   * copy the bytes they refer to.
+   */
+  private void releaseShared( Storage storage ) throws IOException {
+    releaseShared( storage, this );
+  }
+
+  /**
+   * Tell the snapshots and the documents, other than releaser, that may
+   * refer to storage to copy the bytes they refer to.
+   */
+  static void releaseShared( Storage storage, BinaryDocument releaser ) throws IOException {
+    synchronized (sharers) {
+      Iterator i = sharers.iterator();
+      while (i.hasNext()) {
+        Object sharer = ((WeakReference) i.next()).get();
+        if (sharer == null)
+          i.remove();
+        else if (sharer instanceof Snapshot)
+          ((Snapshot) sharer).release( storage );
+        else if (sharer != releaser)
+          ((BinaryDocument) sharer).release( storage );
+      }
+    }
+  }
+
+  /**
+   * Notify observers that the removed pieces at offset were replaced by the
+   * inserted ones, describing the change as an insertion, a deletion, a 
+   * write, or a replacement.
+   */
+  private void notifyContentChanged( long offset, PieceTable.Pieces removed, PieceTable.Pieces inserted ) {
+    long removedLength  = removed.length();
+    long insertedLength = inserted.length();
+    if (removedLength == 0 && insertedLength == 0)
+      return;
+
+    int type;
+    long len = insertedLength;
+    if (removedLength == 0)
+      type = ContentChangedEvent.INSERTED;
+    else if (insertedLength == 0) {
+      type = ContentChangedEvent.DELETED;
+      len  = removedLength;
+    }
+    else if (removedLength == insertedLength)
+      type = ContentChangedEvent.WRITTEN;
+    else
+      type = ContentChangedEvent.REPLACED;
+
+    Offset loc = createOffset(offset);
+    notifyContentChanged( new ContentChangedEvent( this, new ByteSpan( loc, loc.addOffset(len-1) ),
+                                                   type, offset, removed, inserted ) );
+  }
+
+  /**
+   * Notify observers of e, or, during a batch, widen the batch to cover it.
+   */
+  private void notifyContentChanged( ContentChangedEvent e ) {
+    if (batchDepth == 0) {
+      setChanged();
+      notifyObservers( e );
+      clearChanged();
+      return;
+    }
+
+    long offset = e.getEditOffset();
+    long insertedLength = e.getInserted().length();
+    if (e.getRemoved().length() == 0 && insertedLength == 0)
+      return;
+    if (batchStart < 0 || offset < batchStart)
+      batchStart = offset;
+    batchTail = Math.min( batchTail, length() - offset - insertedLength );
+  }
+
+  private void writeTo( File target, boolean incremental, int type ) throws IOException {
+    releaseUnreachableSnapshots();
+    Storage original = pieces.getOriginal();
+    File source = getSourceFile(original);
+    boolean readsTarget = source != null && target.exists() && 
+                          Files.isSameFile(source.toPath(), target.toPath());
+
+    // The original bytes are about to be overwritten; the undo history and
+    // any snapshots must keep their own copy of those they refer to.
+    if (readsTarget) {
+      undoHistory.release(original);
+      releaseShared(original);
+    }
+
+    SavePlanner planner = new SavePlanner(pieces);
+    if (saveMode == SAVE_ATOMIC) {
+      planner.plan(false, null, true);
+      planner.executeAtomically(target);
+    }
+    else {
+      planner.plan(incremental, readsTarget ? original : null);
+      planner.execute(target);
+    }
+
+    if (readsTarget) {
+      // The file has been rewritten or replaced, so read it afresh. The add
+      // buffer is kept, as the undo history refers to it.
+      original.close();
+      pieces = new PieceTable(openOriginal(target, openMode), pieces.getAdd());
+    }
+    else {
+      pieces.markSaved();
+    }
+
+    file = target;
+    modified = false;
+
+    setChanged();
+    notifyObservers( new DocumentSavedEvent( this, target, type, 
+                       planner.getBytesWritten(), planner.getElapsedTime() ) );
+  }
+
+  /**
+   * Create the pieces of a document whose original storage reads from file.
+   */
+  private static PieceTable openPieces( File file, int openMode ) throws IOException {
+    if (openMode == PAGED)
+      return new PieceTable(openOriginal(file, openMode), new ArrayStorage(PageCache.getShared()));
+    return new PieceTable(openOriginal(file, openMode), new ArrayStorage());
+  }
+
+  /**
+   * Create the storage that reads the original bytes of a document from file.
+   */
+  private static Storage openOriginal( File file, int openMode ) throws IOException {
+    if (openMode == PAGED)
+      return new PagedStorage(file, PageCache.getShared());
+    return new MappedStorage(file);
+  }
+
+  /**
+   * Returns the file from which storage reads, or null if it is held in memory. 
+   */
+  private static File getSourceFile( Storage storage ) {
+    if (storage instanceof FileStorage)
+      return ((FileStorage) storage).getFile();
+    return null;
+  }
+
+  /**
+   * Release the anchors of positions that the garbage collector found to be
+   * unreachable.
+   */
+  private void releaseUnreachablePositions() {
+    PositionReference reference;
+    while ((reference = (PositionReference) positionQueue.poll()) != null) {
+      untrack(reference);
+      reference.anchor.referenceLost();
+    }
+  }
+
+  /**
+   * Release the bytes retained by snapshots that the garbage collector found
+   * to be unreachable, which deletes their temporary files. This runs as a
+   * snapshot is taken or the document saved, never in the middle of an 
+   * edit, and a file whose bytes could not be copied is left for the JVM to
+   * delete on exit rather than failing the operation at hand.
+   */
+  private static void releaseUnreachableSnapshots() {
+    SnapshotReference reference;
+    while ((reference = (SnapshotReference) snapshotQueue.poll()) != null) {
+      try {
+        reference.retained.close();
+      }
+      catch (IOException e) {
+      }
+    }
+  }
+
+  //////////////////////////
+  // INNER CLASSES
+
+  /**
+   * A phantom reference to a Position, which remembers the anchor to release
+   * once the position is unreachable.
+   */
+  static class PositionReference extends PhantomReference {
+    PositionAnchor anchor;
+    PositionReference previous;
+    PositionReference next;
+
+    PositionReference(Position position, PositionAnchor anchor, ReferenceQueue queue) {
+      super(position, queue);
+      this.anchor = anchor;
+    }
+  }
+
+  /**
+   * A weak reference to a Snapshot, which remembers the bytes to release once
+   * the snapshot is unreachable.
+   */
+  static class SnapshotReference extends WeakReference {
+    Snapshot.Retained retained;
+
+    SnapshotReference(Snapshot snapshot, ReferenceQueue queue) {
+      super(snapshot, queue);
+      this.retained = snapshot.getRetained();
+    }
+  }
 }
@@ -0,0 +1,238 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+
+package jhexedit.bdoc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.Charset;
+
+/**
+ * Finds a sequence of bytes in a BinaryDocument. The pattern can be given
+ * as bytes, as a string of hex digits, or as text in any encoding.
+ * <p>
+ * Searching uses Boyer-Moore-Horspool: a table built from the pattern says
+ * how far the pattern can be moved along after a mismatch, judging by the
+ * last byte under it, so most bytes of the document are never compared. 
+ * The document is read a large chunk at a time, straight from its pieces,
+ * so a search runs at close to the speed the document's storage can be read.
+ * <p>
+ * Matches are returned as Positions, so that they follow the bytes found as
+ * the document is edited. Matches hands them out one at a time, going on
+ * from the last match each time, so a long search can be spread out, or 
+ * stopped, as the matches are shown.
+ */
+public class ByteSearch {
+
+  // CONSTANTS
+  private static final int CHUNK_SIZE = 16 * PageCache.PAGE_SIZE;
+
+  // PRIVATE MEMBERS
+  private byte [] pattern;
+  private int [] skip = new int[256];
+  private byte [] buffer;
+
+  // CONSTRUCTORS
+  public ByteSearch( byte [] pattern ) {
+    this.pattern = pattern.clone();
+
+    int m = this.pattern.length;
+    for (int i=0; i<skip.length; i++)
+      skip[i] = Math.max(m, 1);
+    for (int i=0; i<m-1; i++)
+      skip[0xFF & this.pattern[i]] = m - 1 - i;
+  }
+
+  /**
+   * Construct a search for the bytes written in hex, such as "DE AD BE EF",
+   * "deadbeef" or "0xde, 0xad". The digits are read by a DigitInputStream,
+   * just as when hex is pasted.
+   */
+  public static ByteSearch forHex( String hex ) {
+    ByteArrayOutputStream pattern = new ByteArrayOutputStream();
+    byte [] b = new byte[256];
+    try {
+      DigitInputStream in = new DigitInputStream(new StringReader(hex), 16, 2);
+      for (int n = in.read(b, 0, b.length); n >= 0; n = in.read(b, 0, b.length))
+        pattern.write(b, 0, n);
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return new ByteSearch(pattern.toByteArray());
+  }
+
+  /**
+   * Construct a search for text, encoded in charset.
+   */
+  public static ByteSearch forText( String text, Charset charset ) {
+    return new ByteSearch(text.getBytes(charset));
+  }
+
+  // GETTERS
+  public byte [] getPattern() {
+    return pattern.clone();
+  }
+
+  // PUBLIC METHODS
+  /**
+   * Find the first match at or after from.
+   *
+   * @return the position of the match, or null if there is none.
+   */
+  public Position find( Location from ) {
+    BinaryDocument bDoc = from.getDocument();
+    long offset = find( bDoc, from.getOffset(), bDoc.length() );
+    return (offset < 0 ? null : bDoc.createPosition(offset));
+  }
+
+  /**
+   * Find the first match that lies wholly within span.
+   *
+   * @return the position of the match, or null if there is none.
+   */
+  public Position find( ByteSpan span ) {
+    BinaryDocument bDoc = span.getStartLocation().getDocument();
+    long offset = find( bDoc, span.getStartLocation().getOffset(), span.getEndLocation().getOffset() + 1 );
+    return (offset < 0 ? null : bDoc.createPosition(offset));
+  }
+
+  /**
+   * Returns the matches at or after from, to be found one at a time.
+   */
+  public Matches matches( Location from ) {
+    return new Matches(from);
+  }
+
+  /**
+   * Returns the offset of the first match at or after from that ends at or
+   * before to, or -1 if there is none.
+   */
+  public long find( BinaryDocument bDoc, long from, long to ) {
+    int m = pattern.length;
+    to = Math.min(to, bDoc.length());
+    if (from < 0)
+      from = 0;
+    if (to - from < m)
+      return -1;
+    if (m == 0)
+      return from;
+
+    if (buffer == null || buffer.length < 2*m)
+      buffer = new byte[Math.max(CHUNK_SIZE, 2*m)];
+
+    long bufferOffset = from;   // document offset of buffer[0]
+    int count = 0;
+    while (true) {
+      long remaining = to - bufferOffset - count;
+      int n = bDoc.read( bDoc.createOffset(bufferOffset + count), buffer, count, 
+                         (int) Math.min(buffer.length - count, remaining) );
+      if (n > 0)
+        count += n;
+      boolean end = (n <= 0 || n == remaining);
+
+      int i = 0;
+      while (i <= count - m) {
+        int j = m - 1;
+        while (j >= 0 && buffer[i+j] == pattern[j])
+          j--;
+        if (j < 0)
+          return bufferOffset + i;
+        i += skip[0xFF & buffer[i+m-1]];
+      }
+
+      if (end)
+        return -1;
+
+      // Keep the bytes the pattern may still match, and read on after them
+      int kept = Math.max(0, count - i);
+      System.arraycopy(buffer, count - kept, buffer, 0, kept);
+      bufferOffset += count - kept;
+      count = kept;
+    }
+  }
+
+  //////////////////////////
+  // INNER CLASSES
+
+  /**
+   * The matches of a search, handed out one at a time. Each search goes on
+   * from just after the last match, through a Position, so edits made 
+   * between searches are taken into account. Matches may overlap.
+   */
+  public class Matches {
+    private BinaryDocument bDoc;
+    private Position next;
+
+    private Matches( Location from ) {
+      bDoc = from.getDocument();
+      next = bDoc.createPosition(from.getOffset());
+    }
+
+    /**
+     * Find the next match.
+     *
+     * @return the position of the match, or null once there are no more.
+     */
+    public Position next() {
+      if (next == null)
+        return null;
+
+      long offset = find( bDoc, next.getOffset(), bDoc.length() );
+      next.dispose();
+      next = null;
+      if (offset < 0)
+        return null;
+
+      next = bDoc.createPosition(offset + 1);
+      return bDoc.createPosition(offset);
+    }
+
+    /**
+     * Stop searching, letting go of the position the search would go on from.
+     */
+    public void dispose() {
+      if (next != null) {
+        next.dispose();
+        next = null;
+      }
+    }
+  }
+}
@@ -41,17 +41,33 @@
  */
 package jhexedit.bdoc;
 
+import java.util.Arrays;
+
 public class ContentChangedEvent extends BinaryDocumentEvent {
 
   // CONSTANTS
   public static final int WRITTEN         = 0;
   public static final int INSERTED        = 1;
   public static final int DELETED         = 2;
+  public static final int REPLACED        = 3;
+
+  private static final int MAX_ARRAY_LENGTH = Integer.MAX_VALUE - 8;
   
   // PRIVATE MEMBERS
   private int type;
   private ByteSpan span;
-  private byte[] oldContent; // on WRITTEN and DELETED only
+  private byte[] oldContent; // on WRITTEN, DELETED and REPLACED only, null if over 2 GB
+
+  // Where the old content is found within the removed pieces. The old 
+  // content is only copied out of them if asked for.
+  private long oldContentOffset;
+  private long oldContentLength = -1;
+
+  // The edit as a replacement of the removed pieces by the inserted pieces
+  // at editOffset, which includes any zeros filling a gap before the span.
+  private long editOffset;
+  private PieceTable.Pieces removed;
+  private PieceTable.Pieces inserted;
 
   // CONSTRUCTOR
   public ContentChangedEvent( BinaryDocument bDoc, ByteSpan span, int type, byte[] oldContent ) {
@@ -59,6 +75,24 @@ public class ContentChangedEvent extends BinaryDocumentEvent {
     this.span = span;
     this.type = type;
     this.oldContent = oldContent;
+    if (oldContent != null)
+      oldContentLength = oldContent.length;
+  }
+
+  ContentChangedEvent( BinaryDocument bDoc, ByteSpan span, int type,
+                       long editOffset, PieceTable.Pieces removed, PieceTable.Pieces inserted ) {
+    this(bDoc, span, type, null);
+    this.editOffset = editOffset;
+    this.removed    = removed;
+    this.inserted   = inserted;
+    if (type == REPLACED) {
+      // The span holds the bytes that replaced the old content
+      oldContentLength = removed.length();
+    }
+    else if (type != INSERTED) {
+      oldContentOffset = span.getStartLocation().getOffset() - editOffset;
+      oldContentLength = span.length();
+    }
   }
 
   // GETTERS
@@ -70,7 +104,62 @@ public class ContentChangedEvent extends BinaryDocumentEvent {
     return span;
   }
   
+  /**
+   * Returns the bytes that were overwritten or deleted, or null if the event
+   * is for an insertion, or if there are more than fit in an array. The bytes
+   * are copied when this method is first called; use readOldContent() to
+   * look at part of a large range.
+   */
   public byte[] getOldContent() {
+    if (oldContent == null && removed != null && 
+        oldContentLength >= 0 && oldContentLength <= MAX_ARRAY_LENGTH) {
+      byte[] b = new byte[(int) oldContentLength];
+      readOldContent(0, b, 0, b.length);
+      oldContent = b;
+    }
     return oldContent;
   }
+
+  /**
+   * Returns the number of bytes that were overwritten or deleted, or -1 if
+   * the event is for an insertion.
+   */
+  public long getOldContentLength() {
+    return oldContentLength;
+  }
+
+  /**
+   * Copy up to len bytes of the old content, starting at offset, into b.
+   *
+   * @return the number of bytes copied.
+   */
+  public int readOldContent( long offset, byte[] b, int off, int len ) {
+    len = (int) Math.max(0, Math.min(len, oldContentLength - offset));
+    if (oldContent != null) {
+      System.arraycopy(oldContent, (int) offset, b, off, len);
+    }
+    else if (removed != null) {
+      // Bytes written beyond the end of the document replaced 0 valued bytes
+      Arrays.fill(b, off, off + len, (byte) 0);
+      removed.read(oldContentOffset + offset, b, off, len);
+    }
+    return len;
+  }
+
+  ////// PACKAGE PROTECTED
+  long getEditOffset() {
+    return editOffset;
+  }
+
+  /**
+   * Returns the pieces the edit removed, or null if the event does not
+   * describe them.
+   */
+  PieceTable.Pieces getRemoved() {
+    return removed;
+  }
+
+  PieceTable.Pieces getInserted() {
+    return inserted;
+  }
 }
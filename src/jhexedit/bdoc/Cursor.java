@@ -38,14 +38,43 @@
 
 package jhexedit.bdoc;
 
+import java.io.EOFException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 import java.util.Observable;
 
+/**
+ * A Cursor reads and writes a document sequentially, like the implicit
+ * cursor of a stream or RandomAccessFile. 
+ * <p>
+ * Reads are served from a small read-ahead buffer, which is refilled 
+ * whenever the cursor leaves it or the document is modified, so reading 
+ * byte by byte, or with readShort(), readInt() and readLong(), allocates
+ * nothing. Bulk reads, read(ByteBuffer) and transferTo() copy straight from
+ * the document.
+ * <p>
+ * By default, observers are notified with the new Offset every time the
+ * cursor moves. Code that scans a document can turn notification off with
+ * setNotifying(false). Bulk operations notify once, however far they move.
+ */
 public class Cursor extends Observable {
 
+  // CONSTANTS
+  private static final int BUFFER_SIZE = 8192;
+
   // PRIVATE MEMBERS
   private BinaryDocument bDoc;
   private Position pos;
+  private ByteOrder byteOrder = ByteOrder.BIG_ENDIAN;
+  private boolean notifying = true;
+
+  private byte [] buffer;
+  private ByteBuffer wrappedBuffer;
+  private long bufferOffset;      // document offset of buffer[0]
+  private int bufferLength;
+  private int bufferModification; // document modification count when filled
   
   // CONSTRUCTORS
   Cursor( Position pos ) {
@@ -57,6 +86,10 @@ public class Cursor extends Observable {
     return pos.getDocument();
   }
   
+  /**
+   * Returns the position of the cursor. The position is the cursor's own,
+   * and moves with it.
+   */
   public Position getPosition() {
     return pos;
   }
@@ -65,20 +98,140 @@ public class Cursor extends Observable {
     return pos.getDocument().createOffset(pos.getOffset());
   }
 
+  /**
+   * Returns the byte order used by readShort(), readInt() and readLong().
+   * The default is big-endian.
+   */
+  public ByteOrder getByteOrder() {
+    return byteOrder;
+  }
+
+  public boolean isNotifying() {
+    return notifying;
+  }
+
+  // SETTERS
+  public void setByteOrder( ByteOrder byteOrder ) {
+    this.byteOrder = byteOrder;
+  }
+
+  /**
+   * Set whether observers are notified when the cursor moves.
+   */
+  public void setNotifying( boolean notifying ) {
+    this.notifying = notifying;
+  }
+
   // CURSOR METHODS
   public void seek( Location loc ) {
-    pos = pos.getDocument().createPosition(loc.getOffset());
+    pos.moveTo(loc.getOffset());
     setChanged();
     notifyObservers(getOffset());
   }
 
   public int read() throws IOException {
-    int b = getDocument().read( pos );
-    if (b > 0)
-      moveCursor(1); 
+    long offset = pos.getOffset();
+    if (!fill(offset, 1))
+      return -1;
+    int b = 0xFF & buffer[(int) (offset - bufferOffset)];
+    moveCursor(1); 
     return b;
   }
 
+  /**
+   * Read two bytes as a short, in the cursor's byte order.
+   *
+   * @throws EOFException if fewer than two bytes remain.
+   */
+  public short readShort() throws IOException {
+    return (short) readBytes(2);
+  }
+
+  /**
+   * Read four bytes as an int, in the cursor's byte order.
+   *
+   * @throws EOFException if fewer than four bytes remain.
+   */
+  public int readInt() throws IOException {
+    return (int) readBytes(4);
+  }
+
+  /**
+   * Read eight bytes as a long, in the cursor's byte order.
+   *
+   * @throws EOFException if fewer than eight bytes remain.
+   */
+  public long readLong() throws IOException {
+    return readBytes(8);
+  }
+
+  /**
+   * Read as many bytes as remain in dst, or in the document.
+   *
+   * @return the number of bytes read, or -1 at the end of the document.
+   */
+  public int read( ByteBuffer dst ) {
+    long offset = pos.getOffset();
+    BinaryDocument doc = getDocument();
+    int total = 0;
+
+    if (dst.hasArray()) {
+      int n = doc.read( offset, dst.array(), dst.arrayOffset() + dst.position(), dst.remaining() );
+      if (n > 0) {
+        dst.position(dst.position() + n);
+        total = n;
+      }
+    }
+    else {
+      allocateBuffer();
+      while (dst.hasRemaining()) {
+        int n = doc.read( offset + total, buffer, 0, Math.min(buffer.length, dst.remaining()) );
+        if (n <= 0)
+          break;
+        dst.put(buffer, 0, n);
+        total += n;
+      }
+      bufferLength = 0;
+    }
+
+    if (total == 0)
+      return dst.hasRemaining() ? -1 : 0;
+    moveCursor(total);
+    return total;
+  }
+
+  /**
+   * Write up to count bytes, from the cursor onwards, to target. 
+   *
+   * @return the number of bytes transferred, which is less than count only
+   *         if the end of the document was reached.
+   * @throws IOException if an exception occured while writing to target.
+   */
+  public long transferTo( WritableByteChannel target, long count ) throws IOException {
+    long offset = pos.getOffset();
+    BinaryDocument doc = getDocument();
+    allocateBuffer();
+    bufferLength = 0;
+
+    long total = 0;
+    try {
+      while (total < count) {
+        int n = doc.read( offset + total, buffer, 0, (int) Math.min(buffer.length, count - total) );
+        if (n <= 0)
+          break;
+        wrappedBuffer.clear().limit(n);
+        while (wrappedBuffer.hasRemaining())
+          target.write(wrappedBuffer);
+        total += n;
+      }
+    }
+    finally {
+      if (total > 0)
+        moveCursor(total);
+    }
+    return total;
+  }
+
   public int read( byte [] b ) throws IOException {
     int bytesRead = getDocument().read( pos, b );
     if (bytesRead > 0) 
@@ -128,22 +281,78 @@ public class Cursor extends Observable {
   }
   
   public int skip( int n ) {
-    if (pos.getOffset() + n >= getDocument().length())
-      n = (int) (getDocument().length() - pos.getOffset() - n - 1);
-    if (n>0) 
+    return (int) skip( (long) n );
+  }
+
+  /**
+   * Move the cursor up to n bytes forward, stopping at the end of the document.
+   *
+   * @return the number of bytes skipped.
+   */
+  public long skip( long n ) {
+    n = Math.min(n, getDocument().length() - pos.getOffset());
+    if (n > 0) 
       moveCursor(n);
+    else
+      n = 0;
     
     return n;    
   }
 
   ////
-  private void moveCursor(int n) {
-    Position oldPos = pos;      
-    pos = (Position) pos.addOffset(n);
-    if (pos != oldPos)
-      oldPos.dispose();
+  private void moveCursor(long n) {
+    pos.moveTo(pos.getOffset() + n);
 
-    setChanged();
-    notifyObservers(getOffset());
+    if (notifying && countObservers() > 0) {
+      setChanged();
+      notifyObservers(getOffset());
+    }
+  }
+
+  private void allocateBuffer() {
+    if (buffer == null) {
+      buffer = new byte[BUFFER_SIZE];
+      wrappedBuffer = ByteBuffer.wrap(buffer);
+    }
+  }
+
+  /**
+   * Make sure the buffer holds the n bytes at offset, refilling it if need be.
+   *
+   * @return false if fewer than n bytes remain in the document.
+   */
+  private boolean fill(long offset, int n) {
+    BinaryDocument doc = getDocument();
+    int modification = doc.getModificationCount();
+    if (bufferModification != modification || offset < bufferOffset || 
+        offset + n > bufferOffset + bufferLength) {
+      allocateBuffer();
+      bufferOffset = offset;
+      bufferLength = Math.max(doc.read( offset, buffer, 0, buffer.length ), 0);
+      bufferModification = modification;
+    }
+    return offset + n <= bufferOffset + bufferLength;
+  }
+
+  /**
+   * Read n bytes as an unsigned number, in the cursor's byte order.
+   */
+  private long readBytes(int n) throws IOException {
+    long offset = pos.getOffset();
+    if (!fill(offset, n))
+      throw new EOFException();
+
+    int i = (int) (offset - bufferOffset);
+    long value = 0;
+    if (byteOrder == ByteOrder.BIG_ENDIAN) {
+      for (int j=0; j<n; j++)
+        value = (value << 8) | (0xFF & buffer[i+j]);
+    }
+    else {
+      for (int j=n-1; j>=0; j--)
+        value = (value << 8) | (0xFF & buffer[i+j]);
+    }
+    moveCursor(n);
+    return value;
   }
 }
@@ -0,0 +1,138 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+
+package jhexedit.bdoc;
+
+import java.io.*;
+
+/**
+ * An InputStream of the bytes written as digits in some text, such as
+ * "DE AD BE EF", "deadbeef" or "0xde, 0xad". The text is read from a
+ * Reader a buffer at a time, so that it never has to be held in memory
+ * twice.
+ * <p>
+ * Runs of digits are split into bytes of byteWidth digits each; a shorter
+ * run, or the rest of a long one, is a byte of its own. Whitespace, 
+ * punctuation, and any other character that is not a digit in the radix
+ * separate runs. A "0x" prefix is skipped when the radix is 16. Bytes
+ * whose value is above 0xFF are skipped too, just like when typed.
+ */
+public class DigitInputStream extends InputStream {
+
+  // PRIVATE MEMBERS
+  private Reader reader;
+  private int radix;
+  private int byteWidth;
+
+  private char [] chars = new char[8192];
+  private int charCount;
+  private int charIndex;
+
+  // The digits of the byte being read, and of the run it belongs to
+  private int value;
+  private int digits;
+  private int runLength;
+  private boolean eof;
+
+  // CONSTRUCTORS
+  public DigitInputStream( Reader reader, int radix, int byteWidth ) {
+    this.reader    = reader;
+    this.radix     = radix;
+    this.byteWidth = byteWidth;
+  }
+
+  // INPUT STREAM
+  public int read() throws IOException {
+    byte [] b = new byte[1];
+    if (read(b, 0, 1) <= 0)
+      return -1;
+    return b[0] & 0xFF;
+  }
+
+  public int read( byte [] b, int off, int len ) throws IOException {
+    int count = 0;
+    while (count < len) {
+      if (charIndex == charCount) {
+        if (eof)
+          break;
+        charCount = reader.read(chars, 0, chars.length);
+        charIndex = 0;
+        if (charCount < 0) {
+          charCount = 0;
+          eof = true;
+          // The last run ends with the text
+          if (digits > 0 && value <= 0xFF)
+            b[off + count++] = (byte) value;
+          digits = 0;
+        }
+        continue;
+      }
+
+      char c = chars[charIndex++];
+      int digit = Character.digit(c, radix);
+      if (digit >= 0) {
+        value = value*radix + digit;
+        digits++;
+        runLength++;
+        if (digits == byteWidth) {
+          if (value <= 0xFF)
+            b[off + count++] = (byte) value;
+          value  = 0;
+          digits = 0;
+        }
+      }
+      else if ((c == 'x' || c == 'X') && radix == 16 && runLength == 1 && value == 0) {
+        // A 0x prefix
+        digits = 0;
+        runLength = 0;
+      }
+      else {
+        if (digits > 0 && value <= 0xFF)
+          b[off + count++] = (byte) value;
+        value = 0;
+        digits = 0;
+        runLength = 0;
+      }
+    }
+    return (count == 0 && eof ? -1 : count);
+  }
+
+  public void close() throws IOException {
+    reader.close();
+  }
+}
@@ -250,6 +250,10 @@ public class DocTester {
           System.out.println("DELETED: " + e.getSpan().getStartLocation().getOffset() + ", " +
                                           e.getSpan().getEndLocation().getOffset());
         }
+        else if ( e.getType() == ContentChangedEvent.REPLACED ) {
+          System.out.println("REPLACED: " + e.getSpan().getStartLocation().getOffset() + ", " +
+                                           e.getSpan().getEndLocation().getOffset());
+        }
       }
     }
   }
@@ -53,6 +53,8 @@ public class DocumentSavedEvent extends BinaryDocumentEvent {
   // PRIVATE MEMBERS
   private int type;
   private File file;
+  private long bytesWritten;
+  private long elapsedTime;
 
   // CONSTRUCTOR
   public DocumentSavedEvent( BinaryDocument bDoc, File file, int type ) {
@@ -61,6 +63,12 @@ public class DocumentSavedEvent extends BinaryDocumentEvent {
     this.type = type;
   }
 
+  public DocumentSavedEvent( BinaryDocument bDoc, File file, int type, long bytesWritten, long elapsedTime ) {
+    this(bDoc, file, type);
+    this.bytesWritten = bytesWritten;
+    this.elapsedTime  = elapsedTime;
+  }
+
   // GETTERS
   public int getType() {
     return type;
@@ -69,4 +77,26 @@ public class DocumentSavedEvent extends BinaryDocumentEvent {
   public File getFile() {
     return file;
   }
+
+  /**
+   * Returns the number of bytes written by the save, including any bytes
+   * written to temporary files.
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * Returns the time taken by the save, in nanoseconds.
+   */
+  public long getElapsedTime() {
+    return elapsedTime;
+  }
+
+  /**
+   * Returns the rate at which the save wrote bytes, in bytes per second.
+   */
+  public double getThroughput() {
+    return elapsedTime > 0 ? bytesWritten * 1e9 / elapsedTime : 0;
+  }
 }
@@ -0,0 +1,157 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+
+package jhexedit.bdoc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A read-only Storage that maps a file into memory. The file is mapped in
+ * windows of WINDOW_SIZE bytes, and a window is only mapped the first time
+ * a byte within it is read. At most MAX_MAPPED_WINDOWS windows are
+ * referenced at any time; the operating system pages the mapped bytes in
+ * and out on demand, so opening a file costs the same regardless of its
+ * size, and none of its bytes are copied to the heap.
+ * <p>
+ * The file must not be modified by other means while it is mapped.
+ */
+class MappedStorage implements FileStorage {
+
+  // CONSTANTS
+  public static final int WINDOW_BITS = 26;
+  public static final int WINDOW_SIZE = 1 << WINDOW_BITS;
+  public static final int MAX_MAPPED_WINDOWS = 16;
+  private static final int WINDOW_MASK = WINDOW_SIZE - 1;
+
+  // PRIVATE MEMBERS
+  private File file;
+  private FileChannel channel;
+  private long length;
+  private Map windows;
+
+  // The most recently used window, which is read far more often than the others
+  private long lastIndex = -1;
+  private MappedByteBuffer lastWindow;
+
+  // CONSTRUCTORS
+  public MappedStorage(File file) throws IOException {
+    this.file    = file;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    this.length  = channel.size();
+
+    // Windows that fall out of this map are unmapped once they are garbage collected
+    windows = new LinkedHashMap(2*MAX_MAPPED_WINDOWS, 0.75f, true) {
+      protected boolean removeEldestEntry(Map.Entry eldest) {
+        return size() > MAX_MAPPED_WINDOWS;
+      }
+    };
+  }
+
+  // GETTERS
+  public File getFile() {
+    return file;
+  }
+
+  public FileChannel getChannel() {
+    return channel;
+  }
+
+  // STORAGE INTERFACE
+  public long length() {
+    return length;
+  }
+
+  public int read(long pos, byte [] b, int off, int len) {
+    if (pos >= length)
+      return 0;
+    if (len > length - pos)
+      len = (int) (length - pos);
+
+    int copied = 0;
+    while (copied < len) {
+      MappedByteBuffer window = getWindow(pos >>> WINDOW_BITS);
+      int windowOffset = (int) pos & WINDOW_MASK;
+      int n = Math.min(len - copied, WINDOW_SIZE - windowOffset);
+      window.get(windowOffset, b, off + copied, n);
+      copied += n;
+      pos    += n;
+    }
+    return len;
+  }
+
+  public synchronized void close() throws IOException {
+    windows.clear();
+    lastWindow = null;
+    lastIndex  = -1;
+    channel.close();
+  }
+
+  ////// PRIVATE
+  /**
+   * Synchronized, as a ReadAhead may be reading the storage from another
+   * thread.
+   */
+  private synchronized MappedByteBuffer getWindow(long index) {
+    if (index == lastIndex)
+      return lastWindow;
+
+    Long key = Long.valueOf(index);
+    MappedByteBuffer window = (MappedByteBuffer) windows.get(key);
+    if (window == null) {
+      long start = index << WINDOW_BITS;
+      try {
+        window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(WINDOW_SIZE, length - start));
+      }
+      catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+      windows.put(key, window);
+    }
+
+    lastIndex  = index;
+    lastWindow = window;
+    return window;
+  }
+}
@@ -58,7 +58,8 @@ public class Offset extends Location {
   }
 
   public int compareTo(Object o) {
-    return (int) (offset - ((Location) o).getOffset());
+    long other = ((Location) o).getOffset();
+    return offset < other ? -1 : (offset == other ? 0 : 1);
   }
 
   public String toString() {
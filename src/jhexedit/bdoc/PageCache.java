@@ -0,0 +1,239 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+
+package jhexedit.bdoc;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A PageCache holds fixed size pages of files on the heap, within a memory
+ * budget. Documents opened in the PAGED mode read their files through a
+ * page cache, and the shared cache returned by getShared() is used by all
+ * of them, so the memory held for open documents is bounded no matter how
+ * many documents are open or how large they are.
+ * <p>
+ * Clean pages, which can be read from their file again, are evicted in
+ * least-recently-used order whenever the budget is exceeded. The memory
+ * holding bytes that exist nowhere else (the add buffers of paged documents)
+ * is pinned: it counts against the budget, so clean pages make way for it,
+ * but it is never evicted. The budget is therefore a target rather than a
+ * hard limit; it can only be exceeded by pinned memory.
+ * <p>
+ * PageCaches are thread-safe.
+ */
+public class PageCache {
+
+  // CONSTANTS
+  public static final int PAGE_BITS = 16;
+  public static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+  /** The budget of the shared cache, unless the jhexedit.pageCacheSize property is set. */
+  public static final long DEFAULT_BUDGET = 256L << 20;
+
+  // PRIVATE STATIC MEMBERS
+  private static PageCache shared;
+
+  // PRIVATE MEMBERS
+  private long budget;
+  private long pinned;
+  private Map pages;   // PageKey -> byte[], in least-recently-used order
+
+  private long hits;
+  private long misses;
+  private long evictions;
+
+  /////////////////////////////////////////////////////
+  // STATIC METHODS
+
+  /**
+   * Returns the cache shared by all paged documents.
+   */
+  public static synchronized PageCache getShared() {
+    if (shared == null) 
+      shared = new PageCache(Long.getLong("jhexedit.pageCacheSize", DEFAULT_BUDGET).longValue());
+    return shared;
+  }
+
+  /////////////////////////////////////////////////////
+  // INSTANCE METHODS
+
+  public PageCache(long budget) {
+    this.budget = budget;
+    this.pages  = new LinkedHashMap(64, 0.75f, true);
+  }
+
+  // GETTERS AND SETTERS
+  public synchronized long getBudget() {
+    return budget;
+  }
+
+  /**
+   * Change the memory budget, evicting pages if the cache is now over budget.
+   */
+  public synchronized void setBudget(long budget) {
+    this.budget = budget;
+    evict();
+  }
+
+  /**
+   * Returns the number of bytes held by the cache, pinned or not.
+   */
+  public synchronized long getMemoryUsed() {
+    return (long) pages.size() * PAGE_SIZE + pinned;
+  }
+
+  public synchronized long getPinnedMemory() {
+    return pinned;
+  }
+
+  public synchronized int getPageCount() {
+    return pages.size();
+  }
+
+  public synchronized long getHitCount() {
+    return hits;
+  }
+
+  public synchronized long getMissCount() {
+    return misses;
+  }
+
+  public synchronized long getEvictionCount() {
+    return evictions;
+  }
+
+  public synchronized void resetStatistics() {
+    hits = misses = evictions = 0;
+  }
+
+  public synchronized String toString() {
+    return "PageCache[used=" + getMemoryUsed() + ", budget=" + budget + ", pinned=" + pinned +
+           ", hits=" + hits + ", misses=" + misses + ", evictions=" + evictions + "]";
+  }
+
+  ////// PACKAGE PROTECTED
+
+  /**
+   * Returns a page of storage, reading it if it is not cached. 
+   * The returned array must not be modified.
+   */
+  byte [] getPage(PagedStorage storage, long index) {
+    PageKey key = new PageKey(storage, index);
+    
+    synchronized(this) {
+      byte [] page = (byte []) pages.get(key);
+      if (page != null) {
+        hits++;
+        return page;
+      }
+      misses++;
+    }
+
+    // Read without holding the lock, so that other threads are not held up
+    byte [] page = new byte[PAGE_SIZE];
+    storage.readPage(index, page);
+
+    synchronized(this) {
+      byte [] cached = (byte []) pages.get(key);
+      if (cached != null)
+        return cached;
+      pages.put(key, page);
+      evict();
+    }
+    return page;
+  }
+
+  /**
+   * Account for memory that holds dirty bytes, which can not be evicted.
+   */
+  synchronized void pin(long bytes) {
+    pinned += bytes;
+    evict();
+  }
+
+  synchronized void unpin(long bytes) {
+    pinned -= bytes;
+  }
+
+  /**
+   * Drop all of the pages of a storage.
+   */
+  synchronized void invalidate(PagedStorage storage) {
+    Iterator i = pages.keySet().iterator();
+    while (i.hasNext()) {
+      if (((PageKey) i.next()).storage == storage)
+        i.remove();
+    }
+  }
+
+  ////// PRIVATE
+  private void evict() {
+    Iterator i = pages.keySet().iterator();
+    while (i.hasNext() && getMemoryUsed() > budget) {
+      i.next();
+      i.remove();
+      evictions++;
+    }
+  }
+
+  //////////////////////////
+  // INNER CLASSES
+
+  private static final class PageKey {
+    final PagedStorage storage;
+    final long index;
+
+    PageKey(PagedStorage storage, long index) {
+      this.storage = storage;
+      this.index   = index;
+    }
+
+    public boolean equals(Object o) {
+      if (!(o instanceof PageKey))
+        return false;
+      PageKey key = (PageKey) o;
+      return key.storage == storage && key.index == index;
+    }
+
+    public int hashCode() {
+      return 31 * System.identityHashCode(storage) + (int) (index ^ (index >>> 32));
+    }
+  }
+}
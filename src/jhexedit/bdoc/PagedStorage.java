@@ -0,0 +1,132 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+
+package jhexedit.bdoc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A read-only Storage that reads a file through a PageCache. Only the pages
+ * that are actually read are held in memory, and only for as long as the
+ * cache's budget allows.
+ * <p>
+ * The file must not be modified by other means while it is open.
+ */
+class PagedStorage implements FileStorage {
+
+  // CONSTANTS
+  private static final int PAGE_MASK = PageCache.PAGE_SIZE - 1;
+
+  // PRIVATE MEMBERS
+  private File file;
+  private FileChannel channel;
+  private long length;
+  private PageCache cache;
+
+  // CONSTRUCTORS
+  public PagedStorage(File file, PageCache cache) throws IOException {
+    this.file    = file;
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    this.length  = channel.size();
+    this.cache   = cache;
+  }
+
+  // GETTERS
+  public File getFile() {
+    return file;
+  }
+
+  public FileChannel getChannel() {
+    return channel;
+  }
+
+  public PageCache getCache() {
+    return cache;
+  }
+
+  // STORAGE INTERFACE
+  public long length() {
+    return length;
+  }
+
+  public int read(long pos, byte [] b, int off, int len) {
+    if (pos >= length)
+      return 0;
+    if (len > length - pos)
+      len = (int) (length - pos);
+
+    int copied = 0;
+    while (copied < len) {
+      byte [] page = cache.getPage(this, pos >>> PageCache.PAGE_BITS);
+      int pageOffset = (int) pos & PAGE_MASK;
+      int n = Math.min(len - copied, PageCache.PAGE_SIZE - pageOffset);
+      System.arraycopy(page, pageOffset, b, off + copied, n);
+      copied += n;
+      pos    += n;
+    }
+    return len;
+  }
+
+  public void close() throws IOException {
+    cache.invalidate(this);
+    channel.close();
+  }
+
+  ////// PACKAGE PROTECTED
+  /**
+   * Read a page from the file. Called by the cache on a miss.
+   */
+  void readPage(long index, byte [] page) {
+    long start = index << PageCache.PAGE_BITS;
+    ByteBuffer buffer = ByteBuffer.wrap(page, 0, (int) Math.min(page.length, length - start));
+    try {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, start + buffer.position()) < 0)
+          break;
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+}
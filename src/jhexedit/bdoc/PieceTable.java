@@ -0,0 +1,688 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+
+package jhexedit.bdoc;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A piece table holds the contents of a BinaryDocument as a sequence of
+ * pieces. Each piece refers to a run of bytes in one of two storages: the
+ * original storage, which holds the document as it was opened and is never
+ * modified, and the add buffer, to which every inserted or written byte is
+ * appended. Editing the document never moves bytes around; it only splits,
+ * joins and re-orders pieces.
+ * <p>
+ * The pieces are kept in a treap that is ordered by document offset, where
+ * every node also records the number of bytes in its subtree. Locating an
+ * offset, inserting and deleting are all expected to take O(log <i>p </i>)
+ * operations, where <i>p </i> is the number of pieces, regardless of the 
+ * length of the document. Nodes are never modified once created. 
+ * <p>
+ * The table remembers its pieces as they were when the document was last
+ * saved, which allows the ranges modified since then to be found without
+ * looking at any bytes. Likewise, since nodes are immutable, a range of the
+ * table can be kept as Pieces (to undo an edit, say) at the cost of a few
+ * nodes, and inserted again later, however many bytes it holds.
+ *
+ * @see BinaryDocument
+ */
+class PieceTable {
+
+  // PRIVATE MEMBERS
+  private Storage original;
+  private ArrayStorage add;
+  private Node root;
+  private Node savedRoot;
+  private Random random;
+
+  // Fills the gap when bytes are written or inserted past the end.
+  static final Storage ZEROS = new Storage() {
+    public long length() {
+      return Long.MAX_VALUE;
+    }
+
+    public int read(long pos, byte [] b, int off, int len) {
+      for (int i=0; i<len; i++)
+        b[off+i] = 0;
+      return len;
+    }
+
+    public void close() {
+    }
+  };
+
+  // CONSTRUCTORS
+  /**
+   * Construct a piece table whose initial contents are the contents
+   * of the original storage.
+   */
+  public PieceTable(Storage original, ArrayStorage add) {
+    this.original = original;
+    this.add      = add;
+    this.random   = new Random();
+
+    if (original.length() > 0)
+      root = newNode(original, 0, original.length());
+    savedRoot = root;
+  }
+
+  // GETTERS
+  public long length() {
+    return size(root);
+  }
+
+  public int getPieceCount() {
+    return count(root);
+  }
+
+  public Storage getOriginal() {
+    return original;
+  }
+
+  public ArrayStorage getAdd() {
+    return add;
+  }
+
+  /**
+   * Prepare the add buffer for len more bytes.
+   */
+  public void ensureAddCapacity(long len) {
+    add.ensureCapacity(add.length() + len);
+  }
+
+  // READ
+  /**
+   * Copy up to len bytes starting at offset into b.
+   *
+   * @return the number of bytes copied, or 0 if offset is at or beyond the
+   *         end of the table.
+   */
+  public int read(long offset, byte [] b, int off, int len) {
+    long remaining = length() - offset;
+    if (offset < 0 || remaining <= 0 || len <= 0)
+      return 0;
+    if (len > remaining)
+      len = (int) remaining;
+    read(root, offset, b, off, len);
+    return len;
+  }
+
+  /**
+   * Returns the pieces of up to len bytes starting at offset. No bytes are
+   * copied, and later modifications of the table do not affect the result.
+   */
+  public Pieces slice(long offset, long len) {
+    return new Pieces(root).slice(offset, len);
+  }
+
+  // MODIFICATION
+  /**
+   * Insert len bytes from b at offset. If offset is beyond the end of
+   * the table, the gap is first filled with 0 valued bytes.
+   */
+  public void insert(long offset, byte [] b, int off, int len) {
+    if (len <= 0)
+      return;
+
+    long length = length();
+    if (offset > length) {
+      root = merge(root, newNode(ZEROS, 0, offset - length));
+      length = offset;
+    }
+
+    long start = add.append(b, off, len);
+
+    Node [] parts = split(root, offset);
+    Node left = parts[0];
+
+    // Typing appends to the add buffer right after the previous keystroke,
+    // so the piece ending just before the insertion point can often grow
+    // in place of creating a new one.
+    Node last = rightmost(left);
+    if (last != null && last.storage == add && last.start + last.length == start)
+      left = replaceRightmost(left, last.start, last.length + len);
+    else
+      left = merge(left, newNode(add, start, len));
+
+    root = merge(left, parts[1]);
+  }
+
+  /**
+   * Insert pieces at offset, which must not be beyond the end of the table.
+   * The pieces are rebuilt with priorities of their own, since inserting
+   * the same pieces again and again, as when pasting, would otherwise pile
+   * up nodes of equal priority.
+   */
+  public void insert(long offset, Pieces pieces) {
+    if (pieces.root == null)
+      return;
+    Node [] parts = split(root, offset);
+    root = merge(merge(parts[0], rebuild(pieces)), parts[1]);
+  }
+
+  /**
+   * Delete len bytes starting at offset.
+   *
+   * @return the number of bytes that were actually deleted.
+   */
+  public long delete(long offset, long len) {
+    long remaining = length() - offset;
+    if (len > remaining)
+      len = remaining;
+    if (len <= 0)
+      return 0;
+
+    Node [] tail = split(root, offset + len);
+    Node [] head = split(tail[0], offset);
+    root = merge(head[0], tail[1]);
+    return len;
+  }
+
+  /**
+   * Overwrite len bytes starting at offset with bytes from b, extending
+   * the table as necessary.
+   */
+  public void write(long offset, byte [] b, int off, int len) {
+    delete(offset, len);
+    insert(offset, b, off, len);
+  }
+
+  // SAVING
+  /**
+   * Record that the contents of the table have been saved.
+   */
+  public void markSaved() {
+    savedRoot = root;
+  }
+
+  /**
+   * Returns an iterator over the current pieces of the table.
+   */
+  public PieceIterator iterator() {
+    return new PieceIterator(root);
+  }
+
+  /**
+   * Returns an iterator over the pieces of the table as they were
+   * when markSaved() was last called.
+   */
+  public PieceIterator savedIterator() {
+    return new PieceIterator(savedRoot);
+  }
+
+  /**
+   * Copy the bytes of the pieces that refer to storage, which is neither 
+   * the original storage nor the add buffer, to the end of into, and refer
+   * to them there instead.
+   */
+  public void retain(Storage storage, SpillStorage into) throws IOException {
+    root = new Pieces(root).retain(storage, into).root;
+  }
+
+  /**
+   * Release the storages of the table. The table can not be used afterwards.
+   */
+  public void close() throws IOException {
+    root = null;
+    original.close();
+    add.close();
+  }
+
+  //////////////////////////
+  // TREAP OPERATIONS
+
+  private Node newNode(Storage storage, long start, long length) {
+    return new Node(storage, start, length, random.nextInt(), null, null);
+  }
+
+  /**
+   * Returns a balanced tree of the pieces, where every node has a new 
+   * priority. The priorities are drawn at random, then handed out in
+   * decreasing order from the root down.
+   */
+  private Node rebuild(Pieces pieces) {
+    int count = pieces.getPieceCount();
+    Storage [] storages = new Storage[count];
+    long [] starts  = new long[count];
+    long [] lengths = new long[count];
+    PieceIterator i = pieces.iterator();
+    for (int n=0; i.next(); n++) {
+      storages[n] = i.storage;
+      starts[n]   = i.start;
+      lengths[n]  = i.length;
+    }
+
+    int [] priorities = new int[count];
+    for (int n=0; n<count; n++)
+      priorities[n] = random.nextInt();
+    Arrays.sort(priorities);
+
+    return build(storages, starts, lengths, priorities, 0, count, new int[] { count });
+  }
+
+  /**
+   * Build a balanced tree of the pieces at indices from (inclusive) to to
+   * (exclusive), taking priorities from the end of the sorted array, 
+   * parents before their children.
+   */
+  private static Node build(Storage [] storages, long [] starts, long [] lengths,
+                            int [] priorities, int from, int to, int [] next) {
+    if (from >= to)
+      return null;
+    int mid = (from + to) >>> 1;
+    int priority = priorities[--next[0]];
+    Node left  = build(storages, starts, lengths, priorities, from, mid, next);
+    Node right = build(storages, starts, lengths, priorities, mid + 1, to, next);
+    return new Node(storages[mid], starts[mid], lengths[mid], priority, left, right);
+  }
+
+  private static long size(Node n) {
+    return n == null ? 0 : n.size;
+  }
+
+  private static int count(Node n) {
+    return n == null ? 0 : n.count;
+  }
+
+  /**
+   * Split the tree rooted at n into the first k bytes, and the remainder.
+   * A piece that straddles the split point is cut in two.
+   * <p>
+   * Like the other walks down the tree, this one keeps the path in an 
+   * array rather than on the call stack, so that a badly balanced tree
+   * costs time but can not overflow the stack.
+   */
+  private static Node [] split(Node n, long k) {
+    Node [] path = new Node[32];
+    boolean [] wentLeft = new boolean[32];
+    int depth = 0;
+    Node [] parts = new Node[2];
+
+    while (n != null) {
+      long leftSize = size(n.left);
+      if (k > leftSize && k < leftSize + n.length) {
+        // The left half keeps the priority of n. The right half gets one
+        // of its own, no larger than that of n so that it can take its 
+        // place, and is merged with the right subtree.
+        long cut = k - leftSize;
+        int priority = (int) ThreadLocalRandom.current().nextLong(Integer.MIN_VALUE, (long) n.priority + 1);
+        parts[0] = new Node(n.storage, n.start, cut, n.priority, n.left, null);
+        parts[1] = merge(new Node(n.storage, n.start + cut, n.length - cut, priority, null, null), n.right);
+        break;
+      }
+
+      if (depth == path.length) {
+        path     = Arrays.copyOf(path, 2*depth);
+        wentLeft = Arrays.copyOf(wentLeft, 2*depth);
+      }
+      path[depth] = n;
+      wentLeft[depth++] = (k <= leftSize);
+      if (k <= leftSize)
+        n = n.left;
+      else {
+        k -= leftSize + n.length;
+        n = n.right;
+      }
+    }
+
+    while (depth > 0) {
+      n = path[--depth];
+      if (wentLeft[depth])
+        parts[1] = n.with(parts[1], n.right);
+      else
+        parts[0] = n.with(n.left, parts[0]);
+    }
+    return parts;
+  }
+
+  /**
+   * Join two trees, where every byte of a precedes every byte of b.
+   */
+  private static Node merge(Node a, Node b) {
+    Node [] path = new Node[32];
+    boolean [] fromA = new boolean[32];
+    int depth = 0;
+
+    while (a != null && b != null) {
+      if (depth == path.length) {
+        path  = Arrays.copyOf(path, 2*depth);
+        fromA = Arrays.copyOf(fromA, 2*depth);
+      }
+      fromA[depth] = (a.priority >= b.priority);
+      if (fromA[depth]) {
+        path[depth++] = a;
+        a = a.right;
+      }
+      else {
+        path[depth++] = b;
+        b = b.left;
+      }
+    }
+
+    Node n = (a == null ? b : a);
+    while (depth > 0) {
+      Node p = path[--depth];
+      if (fromA[depth])
+        n = p.with(p.left, n);
+      else
+        n = p.with(n, p.right);
+    }
+    return n;
+  }
+
+  private static Node rightmost(Node n) {
+    if (n == null)
+      return null;
+    while (n.right != null)
+      n = n.right;
+    return n;
+  }
+
+  private static Node replaceRightmost(Node n, long start, long length) {
+    Node [] path = new Node[32];
+    int depth = 0;
+    for (; n.right != null; n = n.right) {
+      if (depth == path.length)
+        path = Arrays.copyOf(path, 2*depth);
+      path[depth++] = n;
+    }
+
+    n = new Node(n.storage, start, length, n.priority, n.left, null);
+    while (depth > 0) {
+      Node p = path[--depth];
+      n = p.with(p.left, n);
+    }
+    return n;
+  }
+
+  private static Node leftmost(Node n) {
+    if (n == null)
+      return null;
+    while (n.left != null)
+      n = n.left;
+    return n;
+  }
+
+  private static Node replaceLeftmost(Node n, long start, long length) {
+    Node [] path = new Node[32];
+    int depth = 0;
+    for (; n.left != null; n = n.left) {
+      if (depth == path.length)
+        path = Arrays.copyOf(path, 2*depth);
+      path[depth++] = n;
+    }
+
+    n = new Node(n.storage, start, length, n.priority, null, n.right);
+    while (depth > 0) {
+      Node p = path[--depth];
+      n = p.with(n, p.right);
+    }
+    return n;
+  }
+
+  /**
+   * Copy len bytes, starting offset bytes into the subtree rooted at n.
+   */
+  private static void read(Node n, long offset, byte [] b, int off, int len) {
+    // The nodes whose left subtree is being read, nearest last
+    Node [] pending = new Node[32];
+    int depth = 0;
+
+    while (len > 0) {
+      if (n == null) {
+        if (depth == 0)
+          break;
+        n = pending[--depth];
+        offset = size(n.left);
+      }
+
+      long leftSize = size(n.left);
+      if (offset < leftSize) {
+        if (depth == pending.length)
+          pending = Arrays.copyOf(pending, 2*depth);
+        pending[depth++] = n;
+        n = n.left;
+        continue;
+      }
+
+      if (offset < leftSize + n.length) {
+        long pieceOffset = offset - leftSize;
+        int fromPiece = (int) Math.min(len, n.length - pieceOffset);
+        n.storage.read(n.start + pieceOffset, b, off, fromPiece);
+        off    += fromPiece;
+        len    -= fromPiece;
+        offset += fromPiece;
+      }
+
+      offset -= leftSize + n.length;
+      n = n.right;
+    }
+  }
+
+  //////////////////////////
+  // INNER CLASSES
+
+  /**
+   * An immutable sequence of pieces, cut from a PieceTable with slice().
+   */
+  static final class Pieces {
+    static final Pieces EMPTY = new Pieces(null);
+
+    private final Node root;
+
+    private Pieces(Node root) {
+      this.root = root;
+    }
+
+    /**
+     * Returns a single piece of length bytes starting at start in storage.
+     */
+    static Pieces of(Storage storage, long start, long length) {
+      if (length <= 0)
+        return EMPTY;
+      return new Pieces(new Node(storage, start, length, ThreadLocalRandom.current().nextInt(), null, null));
+    }
+
+    public long length() {
+      return size(root);
+    }
+
+    public int getPieceCount() {
+      return count(root);
+    }
+
+    public PieceIterator iterator() {
+      return new PieceIterator(root);
+    }
+
+    /**
+     * Returns true if any of the pieces refers to storage.
+     */
+    public boolean refersTo(Storage storage) {
+      PieceIterator i = iterator();
+      while (i.next()) {
+        if (i.storage == storage)
+          return true;
+      }
+      return false;
+    }
+
+    /**
+     * Returns these pieces, with the bytes of those that refer to storage 
+     * copied to the end of into, so that storage can be closed.
+     */
+    public Pieces retain(Storage storage, SpillStorage into) throws IOException {
+      if (!refersTo(storage))
+        return this;
+
+      Pieces result = EMPTY;
+      PieceIterator i = iterator();
+      while (i.next()) {
+        if (i.storage == storage)
+          result = result.concat(of(into, into.append(storage, i.start, i.length), i.length));
+        else
+          result = result.concat(of(i.storage, i.start, i.length));
+      }
+      return result;
+    }
+
+    /**
+     * Copy up to len bytes starting at offset into b.
+     *
+     * @return the number of bytes copied.
+     */
+    public int read(long offset, byte [] b, int off, int len) {
+      long remaining = length() - offset;
+      if (offset < 0 || remaining <= 0 || len <= 0)
+        return 0;
+      if (len > remaining)
+        len = (int) remaining;
+      PieceTable.read(root, offset, b, off, len);
+      return len;
+    }
+
+    public Pieces slice(long offset, long len) {
+      len = Math.min(len, length() - offset);
+      if (offset < 0 || len <= 0)
+        return EMPTY;
+      Node [] tail = split(root, offset + len);
+      Node [] head = split(tail[0], offset);
+      return new Pieces(head[1]);
+    }
+
+    /**
+     * Returns these pieces followed by other. Where the last piece of one
+     * continues in the first piece of the other, as when consecutive bytes
+     * are deleted one at a time, the two are joined.
+     */
+    public Pieces concat(Pieces other) {
+      if (root == null) return other;
+      if (other.root == null) return this;
+
+      Node last  = rightmost(root);
+      Node first = leftmost(other.root);
+      if (last.storage == first.storage && last.start + last.length == first.start) {
+        if (other.root.count == 1)
+          return new Pieces(replaceRightmost(root, last.start, last.length + first.length));
+        if (root.count == 1)
+          return new Pieces(replaceLeftmost(other.root, last.start, last.length + first.length));
+      }
+      return new Pieces(merge(root, other.root));
+    }
+  }
+
+  /**
+   * Visits the pieces of a tree in document order. After each successful
+   * call to next(), the fields describe the current piece.
+   */
+  static final class PieceIterator {
+    Storage storage;
+    long start;     // offset of the piece within storage
+    long length;
+    long offset;    // offset of the piece within the document
+
+    private Node [] stack = new Node[32];
+    private int depth;
+    private Node next;
+
+    private PieceIterator(Node root) {
+      offset = 0;
+      length = 0;
+      next   = root;
+    }
+
+    public boolean next() {
+      while (next != null) {
+        if (depth == stack.length) {
+          Node [] stack = new Node[2*this.stack.length];
+          System.arraycopy(this.stack, 0, stack, 0, depth);
+          this.stack = stack;
+        }
+        stack[depth++] = next;
+        next = next.left;
+      }
+      if (depth == 0)
+        return false;
+
+      Node n = stack[--depth];
+      stack[depth] = null;
+      next = n.right;
+
+      offset += length;
+      storage = n.storage;
+      start   = n.start;
+      length  = n.length;
+      return true;
+    }
+  }
+
+  /**
+   * A treap node holding one piece. Nodes are immutable.
+   */
+  private static final class Node {
+    final Storage storage;
+    final long start;
+    final long length;
+    final int priority;
+    final Node left;
+    final Node right;
+    final long size;   // bytes in this subtree
+    final int count;   // pieces in this subtree
+
+    Node(Storage storage, long start, long length, int priority, Node left, Node right) {
+      this.storage  = storage;
+      this.start    = start;
+      this.length   = length;
+      this.priority = priority;
+      this.left     = left;
+      this.right    = right;
+      this.size     = size(left) + length + size(right);
+      this.count    = count(left) + 1 + count(right);
+    }
+
+    Node with(Node left, Node right) {
+      if (left == this.left && right == this.right)
+        return this;
+      return new Node(storage, start, length, priority, left, right);
+    }
+  }
+}
@@ -43,12 +43,10 @@ package jhexedit.bdoc;
  * offset from the start of the document. As such, positions will
  * "float" (move forwards or backwards) as the document is modified
  * through insertions and deletions. For this reason, positions are
- * maintained by their associated documents. This implies that
- * the number of operations required to insert or delete bytes from
- * the document may be effected by the number of positions that occur
- * after the location of the modification. (The order of this relationship
- * is implementation specific, but can be presumed to be no worse than O(<i>n </i>),
- * where <i>n </i>is the number of positions after the modification) For this
+ * maintained by their associated documents. Repeated insertions and deletions
+ * at the same place cost the same regardless of the number of positions, but 
+ * moving the place of modification costs time proportional to the number of
+ * positions between the old place and the new. (See AnchorIndex) For this
  * reason, positions should be used as marks, but not as indices or cursors.
  * <p>
  * No special procedures are required to destroy a Position. Like all simple
@@ -79,29 +77,23 @@ package jhexedit.bdoc;
  *          |     Anchor     | \ 
  *          +----------------+
  * </pre>
- * When the "Position" instance is nolonger referenced, and its finalize() method
- * is invoked by the garbage collector, then the Document detroys the "Position
- * Anchor". Calling Position.dispose() destroys the Position Anchor early.         
+ * The document holds a phantom reference to each Position. When the "Position"
+ * instance is nolonger referenced, the garbage collector queues this reference,
+ * and the next time the document creates a position or is modified, it lets go
+ * of the "Position Anchor". Calling Position.dispose() lets go of it early.
  *          
  * @author Adam Fourney
  */
 public class Position extends Location {
 
   private PositionAnchor anchor;
+  private BinaryDocument.PositionReference reference;
   
   Position(BinaryDocument bDoc, PositionAnchor anchor) {
     super(bDoc);      
     this.anchor = anchor;
     anchor.referenceAdded();
-  }
-
-  protected void finalize() throws Throwable {
-    try {
-      dispose();
-    }
-    finally {
-      super.finalize();
-    }
+    reference = bDoc.track(this, anchor);
   }
   
   public long getOffset() {
@@ -118,8 +110,28 @@ public class Position extends Location {
 
   public void dispose() {
     if (anchor != null) {
+      getDocument().untrack(reference);
+      reference = null;
       anchor.referenceLost();
       anchor = null;
     }
   }
+
+  ////// PACKAGE PROTECTED
+  /**
+   * Move this position to offset. Only valid if the position has an 
+   * exclusive anchor.
+   */
+  void moveTo(long offset) {
+    getDocument().moveAnchor(anchor, offset);
+  }
+
+  /**
+   * Queue the document's reference to this position, as the garbage 
+   * collector does once the position is unreachable. The position must not
+   * be used afterwards.
+   */
+  void enqueue() {
+    reference.enqueue();
+  }
 }
@@ -43,20 +43,24 @@ package jhexedit.bdoc;
 
 class PositionAnchor extends Location {
   private int referenceCount;
+  private boolean exclusive;
+  int slot = -1;   // maintained by the document's AnchorIndex
 
   public PositionAnchor(BinaryDocument bDoc) {
+    this(bDoc, false);
+  }
+
+  /**
+   * @param exclusive True if the anchor belongs to a single position, which
+   *                  may move it. Exclusive anchors are never shared with 
+   *                  other positions.
+   */
+  public PositionAnchor(BinaryDocument bDoc, boolean exclusive) {
     super(bDoc);
+    this.exclusive = exclusive;
     referenceCount = 0;
   }
   
-  protected void finalize() throws Throwable {
-    try {
-      //System.out.println("DESTROY(anchor)");
-    } finally {
-      super.finalize();
-    }
-  }
-  
   public long getOffset() {
     return getDocument().getAnchorOffset(this);
   }
@@ -66,7 +70,9 @@ class PositionAnchor extends Location {
   }
 
   public int compareTo(Object o) {
-    return (int) (getOffset() - ((Location) o).getOffset());
+    long offset = getOffset();
+    long other  = ((Location) o).getOffset();
+    return offset < other ? -1 : (offset == other ? 0 : 1);
   }
 
   public void referenceAdded() {
@@ -85,6 +91,10 @@ class PositionAnchor extends Location {
     return referenceCount;       
   }
 
+  public boolean isExclusive() {
+    return exclusive;
+  }
+
   protected void destroy() {
     getDocument().removeAnchor( this );
   }
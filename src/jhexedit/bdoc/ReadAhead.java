@@ -0,0 +1,105 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+
+package jhexedit.bdoc;
+
+import java.io.UncheckedIOException;
+
+/**
+ * Reads a range of a BinaryDocument ahead of need, so that the pages of
+ * the file holding it are in memory, or mapped in, by the time the range is
+ * read for real. Read aheads are made with BinaryDocument.readAhead().
+ * <p>
+ * A read ahead holds the pieces that made up the range when it was made,
+ * and only reads those held in files; bytes already in memory are skipped.
+ * Unlike the document, it may be run on any thread, and may be cancelled
+ * from any thread, in which case it stops at the next page. It is not 
+ * interrupted instead, as that would close the file.
+ */
+public class ReadAhead implements Runnable {
+
+  // CONSTANTS
+  private static final int CHUNK_SIZE = PageCache.PAGE_SIZE;
+
+  // PRIVATE MEMBERS
+  private PieceTable.Pieces pieces;
+  private volatile boolean cancelled;
+
+  // CONSTRUCTORS
+  ReadAhead( PieceTable.Pieces pieces ) {
+    this.pieces = pieces;
+  }
+
+  // GETTERS
+  public long length() {
+    return pieces.length();
+  }
+
+  public boolean isCancelled() {
+    return cancelled;
+  }
+
+  // PUBLIC METHODS
+  public void cancel() {
+    cancelled = true;
+  }
+
+  /**
+   * Read the range, unless cancelled. A file that is closed meanwhile ends
+   * the read ahead quietly, as there is then nothing left to read.
+   */
+  public void run() {
+    byte [] buffer = null;
+    PieceTable.PieceIterator i = pieces.iterator();
+    try {
+      while (!cancelled && i.next()) {
+        if (!(i.storage instanceof FileStorage))
+          continue;
+        if (buffer == null)
+          buffer = new byte[CHUNK_SIZE];
+
+        long end = i.start + i.length;
+        for (long pos = i.start; pos < end && !cancelled; pos += CHUNK_SIZE)
+          i.storage.read(pos, buffer, 0, (int) Math.min(CHUNK_SIZE, end - pos));
+      }
+    }
+    catch (UncheckedIOException e) {
+      cancelled = true;
+    }
+  }
+}
@@ -0,0 +1,484 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+
+package jhexedit.bdoc;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A SavePlanner works out which parts of a file need to be written to save
+ * a PieceTable to it, and then writes them. 
+ * <p>
+ * An incremental plan compares the pieces of the table with the pieces as
+ * they were when the table was last saved. Ranges that still refer to the
+ * same bytes at the same offset are already in the file; only the remaining
+ * ranges, the modified extents, are written with positional writes, and the
+ * file is then truncated to the length of the table. Overwriting a single
+ * byte thus writes a single byte, whereas inserting or deleting rewrites the
+ * document from the first change until the pieces line up with the file
+ * again (typically, the rest of the document).
+ * <p>
+ * When the table reads from the very file that is being written, a piece
+ * that has moved towards the end of the document would read bytes that an
+ * earlier write has already replaced. If the plan contains such a piece, the
+ * modified extents are first copied to a temporary file, and then copied
+ * from there into place.
+ * <p>
+ * Alternatively, a plan can be carried out atomically: the document is
+ * written to a new file next to the target, flushed to the disk, and then
+ * renamed over the target, so that a crash leaves either the old or the new
+ * file, but never a mixture of the two.
+ * <p>
+ * The extents are streamed piece by piece. Bytes of pieces that come from
+ * a FileStorage are copied by the operating system with transferTo, without
+ * passing through the heap; the bytes of other pieces are gathered in a
+ * single buffer, no larger than the largest extent nor than a few megabytes.
+ * Saving thus takes no more memory than the edits need, whatever the size of
+ * the document.
+ */
+class SavePlanner {
+
+  // CONSTANTS
+  private static final int BUFFER_SIZE = 4 << 20;
+  // File pieces shorter than this are buffered rather than transferred
+  private static final int MIN_TRANSFER = 1 << 16;
+
+  // PRIVATE MEMBERS
+  private PieceTable pieces;
+  private long [] extents;   // pairs of [start, end) offsets
+  private int extentCount;
+  private boolean spool;
+  private Storage source;
+  private long bytesWritten;
+  private long elapsedTime;
+
+  // CONSTRUCTORS
+  public SavePlanner(PieceTable pieces) {
+    this.pieces  = pieces;
+    this.extents = new long[16];
+  }
+
+  // PLANNING
+  /**
+   * Plan a save. 
+   *
+   * @param incremental True to write only the extents modified since the 
+   *                    table was last saved to the target, false to write
+   *                    everything.
+   * @param source The storage that reads from the target file, or null if
+   *               the table does not read from the target.
+   */
+  public void plan(boolean incremental, Storage source) {
+    plan(incremental, source, false);
+  }
+
+  /**
+   * Plan a save. 
+   *
+   * @param incremental True to write only the extents modified since the 
+   *                    table was last saved to the target, false to write
+   *                    everything.
+   * @param source The storage that reads from the target file, or null if
+   *               the table does not read from the target.
+   * @param sparse True to leave the zeros that fill gaps in the table 
+   *               unwritten. Only valid if the target starts out empty; the 
+   *               skipped ranges become holes in the file.
+   */
+  public void plan(boolean incremental, Storage source, boolean sparse) {
+    extentCount = 0;
+    spool = false;
+    this.source = source;
+
+    PieceTable.PieceIterator current = pieces.iterator();
+    PieceTable.PieceIterator saved = pieces.savedIterator();
+    boolean hasSaved = incremental && saved.next();
+
+    while (current.next()) {
+      if (sparse && current.storage == PieceTable.ZEROS)
+        continue;
+
+      long end = current.offset + current.length;
+      long x = current.offset;
+
+      while (x < end) {
+        while (hasSaved && saved.offset + saved.length <= x)
+          hasSaved = saved.next();
+
+        long segmentEnd = end;
+        boolean clean = false;
+        if (hasSaved) {
+          segmentEnd = Math.min(end, saved.offset + saved.length);
+          clean = current.storage == saved.storage &&
+                  current.start - current.offset == saved.start - saved.offset;
+        }
+
+        if (!clean) {
+          addExtent(x, segmentEnd);
+          if (current.storage == source && current.start < current.offset)
+            spool = true;
+        }
+        x = segmentEnd;
+      }
+    }
+  }
+
+  // GETTERS
+  public int getExtentCount() {
+    return extentCount;
+  }
+
+  /**
+   * Returns the number of bytes the plan writes.
+   */
+  public long getModifiedLength() {
+    long length = 0;
+    for (int i=0; i<extentCount; i++)
+      length += extents[2*i+1] - extents[2*i];
+    return length;
+  }
+
+  /**
+   * Returns the number of bytes written by the last execution of the plan,
+   * including those written to a temporary file.
+   */
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+
+  /**
+   * Returns the time taken by the last execution of the plan, in nanoseconds.
+   */
+  public long getElapsedTime() {
+    return elapsedTime;
+  }
+
+  // EXECUTION
+  /**
+   * Carry out the plan, writing to target in place. 
+   *
+   * @throws IOException if an exception occured while writing.
+   */
+  public void execute(File target) throws IOException {
+    long startTime = System.nanoTime();
+    bytesWritten = 0;
+    FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE);
+    try {
+      if (spool)
+        executeSpooled(out);
+      else
+        writeExtents(out, false, source);
+      setLength(out);
+      out.force(true);
+    }
+    finally {
+      out.close();
+    }
+    elapsedTime = System.nanoTime() - startTime;
+  }
+
+  /**
+   * Carry out the plan atomically: write a new file in the directory of
+   * target, force it to the disk, and rename it to target. The plan must
+   * write the whole table, and need not spool, as the target is never
+   * written directly.
+   *
+   * @throws IOException if an exception occured while writing. The target
+   *         is left untouched.
+   */
+  public void executeAtomically(File target) throws IOException {
+    long startTime = System.nanoTime();
+    bytesWritten = 0;
+    Path path = target.getAbsoluteFile().toPath();
+    Path dir = path.getParent();
+
+    Path temp = null;
+    FileChannel out = null;
+    for (int i=0; out == null; i++) {
+      temp = dir.resolve("." + path.getFileName() + "." + Long.toHexString(System.nanoTime() + i) + ".tmp");
+      try {
+        out = FileChannel.open(temp, StandardOpenOption.WRITE, 
+                               StandardOpenOption.CREATE_NEW, StandardOpenOption.SPARSE);
+      }
+      catch (FileAlreadyExistsException e) {
+        // Try another name
+      }
+    }
+
+    boolean moved = false;
+    try {
+      try {
+        writeExtents(out, false, null);
+        setLength(out);
+        out.force(true);
+      }
+      finally {
+        out.close();
+      }
+      
+      if (Files.exists(path))
+        copyPermissions(path, temp);
+
+      try {
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      }
+      catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+      moved = true;
+      forceDirectory(dir);
+    }
+    finally {
+      if (!moved)
+        Files.deleteIfExists(temp);
+    }
+    elapsedTime = System.nanoTime() - startTime;
+  }
+
+  ////// PRIVATE
+  private void addExtent(long start, long end) {
+    if (extentCount > 0 && extents[2*extentCount-1] == start) {
+      extents[2*extentCount-1] = end;
+      return;
+    }
+    if (2*extentCount == extents.length) {
+      long [] extents = new long[2*this.extents.length];
+      System.arraycopy(this.extents, 0, extents, 0, this.extents.length);
+      this.extents = extents;
+    }
+    extents[2*extentCount]   = start;
+    extents[2*extentCount+1] = end;
+    extentCount++;
+  }
+
+  /**
+   * Copy the extents of the table to out, each at its own offset or, if 
+   * packed, one after the other from the start of out. Bytes are never
+   * transferred from exclude, the storage that reads from out.
+   */
+  private void writeExtents(FileChannel out, boolean packed, Storage exclude) throws IOException {
+    PieceTable.PieceIterator piece = pieces.iterator();
+    piece.next();
+    long largest = 0;
+    for (int i=0; i<extentCount; i++)
+      largest = Math.max(largest, extents[2*i+1] - extents[2*i]);
+    Buffer buffer = new Buffer(out, (int) Math.min(largest, BUFFER_SIZE));
+    long position = 0;
+
+    for (int i=0; i<extentCount; i++) {
+      long start = extents[2*i];
+      long end   = extents[2*i+1];
+      if (!packed)
+        position = start;
+
+      while (start < end) {
+        while (piece.offset + piece.length <= start)
+          piece.next();
+
+        long pos = piece.start + (start - piece.offset);
+        long n = Math.min(end, piece.offset + piece.length) - start;
+        if (piece.storage instanceof FileStorage && piece.storage != exclude && n >= MIN_TRANSFER) {
+          buffer.flush();
+          transfer(((FileStorage) piece.storage).getChannel(), pos, n, out, position);
+        }
+        else {
+          buffer.append(piece.storage, pos, n, position);
+        }
+        start    += n;
+        position += n;
+      }
+    }
+    buffer.flush();
+  }
+
+  /**
+   * Copy n bytes at pos in the channel in to position in out.
+   */
+  private void transfer(FileChannel in, long pos, long n, FileChannel out, long position) throws IOException {
+    out.position(position);
+    while (n > 0) {
+      long k = in.transferTo(pos, n, out);
+      if (k <= 0)
+        throw new IOException("Unexpected end of file while saving");
+      pos += k;
+      n   -= k;
+      bytesWritten += k;
+    }
+  }
+
+  /**
+   * Truncate or extend out to the length of the table. Extending leaves a
+   * hole rather than writing zeros.
+   */
+  private void setLength(FileChannel out) throws IOException {
+    long length = pieces.length();
+    if (out.size() > length)
+      out.truncate(length);
+    else if (out.size() < length) {
+      out.write(ByteBuffer.allocate(1), length - 1);
+      bytesWritten++;
+    }
+  }
+
+  private void executeSpooled(FileChannel out) throws IOException {
+    File temp = File.createTempFile("jhexedit", ".spool");
+    try {
+      FileChannel spool = FileChannel.open(temp.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+      try {
+        writeExtents(spool, true, null);
+
+        spool.position(0);
+        for (int i=0; i<extentCount; i++) {
+          long position = extents[2*i];
+          long remaining = extents[2*i+1] - position;
+          while (remaining > 0) {
+            long n = out.transferFrom(spool, position, remaining);
+            if (n <= 0)
+              throw new IOException("Unexpected end of spool file " + temp);
+            position  += n;
+            remaining -= n;
+            bytesWritten += n;
+          }
+        }
+      }
+      finally {
+        spool.close();
+      }
+    }
+    finally {
+      temp.delete();
+    }
+  }
+
+  /**
+   * Give the permissions of the file at from to the file at to, if the file
+   * system supports POSIX permissions.
+   */
+  private static void copyPermissions(Path from, Path to) throws IOException {
+    try {
+      Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+    }
+    catch (UnsupportedOperationException e) {
+      // Not a POSIX file system
+    }
+  }
+
+  /**
+   * Force a directory to the disk, so that a rename within it is durable.
+   */
+  private static void forceDirectory(Path dir) {
+    try {
+      FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ);
+      try {
+        channel.force(true);
+      }
+      finally {
+        channel.close();
+      }
+    }
+    catch (IOException e) {
+      // Not every platform can open a directory; the rename has happened regardless
+    }
+  }
+
+  //////////////////////////
+  // INNER CLASSES
+  
+  /**
+   * Gathers the bytes of consecutive pieces, and writes them to a channel
+   * through a direct buffer, which the channel would otherwise have to
+   * allocate for every write. Both are only allocated once a piece is
+   * buffered rather than transferred.
+   */
+  private class Buffer {
+    private FileChannel out;
+    private int capacity;
+    private byte [] bytes;
+    private ByteBuffer direct;
+    private int count;
+    private long position;   // position in out of bytes[0]
+
+    Buffer(FileChannel out, int capacity) {
+      this.out      = out;
+      this.capacity = capacity;
+    }
+
+    /**
+     * Append n bytes at pos in storage, to be written at position in out.
+     */
+    void append(Storage storage, long pos, long n, long position) throws IOException {
+      if (count > 0 && this.position + count != position)
+        flush();
+      if (bytes == null) {
+        bytes  = new byte[capacity];
+        direct = ByteBuffer.allocateDirect(capacity);
+      }
+      while (n > 0) {
+        if (count == bytes.length)
+          flush();
+        if (count == 0)
+          this.position = position;
+        int k = storage.read(pos, bytes, count, (int) Math.min(n, bytes.length - count));
+        count    += k;
+        pos      += k;
+        position += k;
+        n        -= k;
+      }
+    }
+
+    void flush() throws IOException {
+      if (count == 0)
+        return;
+      direct.clear();
+      direct.put(bytes, 0, count).flip();
+      long position = this.position;
+      while (direct.hasRemaining())
+        position += out.write(direct, position);
+      bytesWritten += count;
+      count = 0;
+    }
+  }
+}
@@ -0,0 +1,156 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+
+package jhexedit.bdoc;
+
+import java.io.IOException;
+
+/**
+ * An immutable copy of a range of bytes from a BinaryDocument, such as the
+ * contents of a clipboard. Snapshots are taken with BinaryDocument.snapshot().
+ * <p>
+ * Taking a snapshot copies no bytes: it holds the pieces that made up the 
+ * range, which keep referring to the storages of the document, and 
+ * inserting it into a document, even another one, only inserts those 
+ * pieces. Taking one takes time proportional to the logarithm of the 
+ * number of edits, and inserting one time proportional to the number of
+ * pieces it holds, however many bytes are involved. Should the document later 
+ * overwrite or close a storage the snapshot refers to, the bytes concerned
+ * are first copied to a temporary file, which is deleted when the snapshot
+ * is disposed of or becomes unreachable.
+ */
+public class Snapshot {
+
+  // PRIVATE MEMBERS
+  private BinaryDocument bDoc;
+  private PieceTable.Pieces pieces;
+
+  // Bytes kept after their storage went away, in a holder that outlives
+  // the snapshot so they can be released once it is unreachable
+  private Retained retained = new Retained();
+
+  // CONSTRUCTORS
+  Snapshot( BinaryDocument bDoc, PieceTable.Pieces pieces ) {
+    this.bDoc   = bDoc;
+    this.pieces = pieces;
+  }
+
+  // GETTERS
+  /**
+   * Returns the document the snapshot was taken from.
+   */
+  public BinaryDocument getDocument() {
+    return bDoc;
+  }
+
+  public long length() {
+    return pieces.length();
+  }
+
+  /**
+   * Copy up to len bytes starting at offset into b.
+   *
+   * @return the number of bytes copied.
+   */
+  public int read( long offset, byte [] b, int off, int len ) {
+    return pieces.read(offset, b, off, len);
+  }
+
+  // PUBLIC METHODS
+  /**
+   * Release the bytes the snapshot copied to a temporary file, once it is no
+   * longer needed, such as when it leaves the clipboard. The documents into
+   * which it was inserted first copy the bytes they refer to. The snapshot
+   * is empty afterwards.
+   *
+   * @throws IOException if the bytes could not be copied.
+   */
+  public void dispose() throws IOException {
+    pieces = PieceTable.Pieces.EMPTY;
+    retained.close();
+  }
+
+  ////// PACKAGE PROTECTED
+  PieceTable.Pieces getPieces() {
+    return pieces;
+  }
+
+  Retained getRetained() {
+    return retained;
+  }
+
+  /**
+   * Copy the bytes of storage that the snapshot refers to, so that storage
+   * can be overwritten or closed.
+   *
+   * @throws IOException if the bytes could not be copied.
+   */
+  void release( Storage storage ) throws IOException {
+    if (!pieces.refersTo(storage))
+      return;
+    pieces = pieces.retain(storage, retained.getStorage());
+  }
+
+  //////////////////////////
+  // INNER CLASSES
+
+  /**
+   * The storage to which a snapshot copies bytes, created on first use.
+   */
+  static class Retained {
+    private SpillStorage storage;
+
+    SpillStorage getStorage() throws IOException {
+      if (storage == null)
+        storage = new SpillStorage();
+      return storage;
+    }
+
+    /**
+     * Tell the documents and snapshots that refer to the storage to copy the
+     * bytes they refer to, then close it.
+     */
+    void close() throws IOException {
+      if (storage == null)
+        return;
+      BinaryDocument.releaseShared(storage, null);
+      storage.close();
+      storage = null;
+    }
+  }
+}
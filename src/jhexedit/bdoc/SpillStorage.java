@@ -0,0 +1,129 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+package jhexedit.bdoc;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * An append-only Storage held in a temporary file, for bytes that must be
+ * kept but are rarely read, such as the bytes an UndoHistory refers to once
+ * the file they came from has been overwritten. The file is deleted when
+ * the storage is closed.
+ */
+class SpillStorage implements FileStorage {
+
+  // CONSTANTS
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  // PRIVATE MEMBERS
+  private File file;
+  private FileChannel channel;
+  private long length;
+
+  // CONSTRUCTORS
+  public SpillStorage() throws IOException {
+    file = File.createTempFile("jhexedit", ".spill");
+    file.deleteOnExit();
+    channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+    length = 0;
+  }
+
+  // GETTERS
+  public File getFile() {
+    return file;
+  }
+
+  public FileChannel getChannel() {
+    return channel;
+  }
+
+  // STORAGE INTERFACE
+  public long length() {
+    return length;
+  }
+
+  public int read(long pos, byte [] b, int off, int len) {
+    if (pos >= length)
+      return 0;
+    if (len > length - pos)
+      len = (int) (length - pos);
+
+    ByteBuffer buffer = ByteBuffer.wrap(b, off, len);
+    try {
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, pos + buffer.position() - off) < 0)
+          throw new IOException("Unexpected end of file " + file);
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return len;
+  }
+
+  /**
+   * Append len bytes starting at pos in storage to the end of this storage.
+   *
+   * @return the offset at which the first appended byte was stored.
+   */
+  public long append(Storage storage, long pos, long len) throws IOException {
+    long start = length;
+    ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BUFFER_SIZE, len));
+    while (len > 0) {
+      int n = storage.read(pos, buffer.array(), 0, (int) Math.min(buffer.capacity(), len));
+      if (n <= 0)
+        throw new IOException("Unexpected end of storage");
+      buffer.clear().limit(n);
+      while (buffer.hasRemaining())
+        length += channel.write(buffer, length);
+      pos += n;
+      len -= n;
+    }
+    return start;
+  }
+
+  public void close() throws IOException {
+    channel.close();
+    file.delete();
+  }
+}
@@ -0,0 +1,510 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+package jhexedit.bdoc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Observable;
+import java.util.Observer;
+
+/**
+ * An UndoHistory records the edits made to a BinaryDocument, so that they
+ * can be undone and redone.
+ * <p>
+ * Edits are recorded from the ContentChangedEvents of the document. Each
+ * edit is kept as the pieces it removed and the pieces it inserted, which
+ * refer to the document's storages rather than copying bytes, so recording
+ * (and undoing) the deletion of a gigabyte takes as much memory as recording
+ * the deletion of a byte.
+ * <p>
+ * Consecutive small edits, such as the keystrokes of someone typing, are
+ * merged into a single unit, which is undone in one step. Merging stops
+ * when the edits are not adjacent, when more than MERGE_INTERVAL 
+ * milliseconds pass between them, or when endUnit() is called. The edits
+ * of a batch (see BinaryDocument.beginBatch()) always form a unit of their own.
+ * <p>
+ * The history estimates the memory it uses. Once this exceeds the memory
+ * budget, the oldest units are written to a temporary file, and read back
+ * only when they are undone.
+ */
+public class UndoHistory implements Observer {
+
+  // CONSTANTS
+  public static final long DEFAULT_MEMORY_BUDGET = 16 << 20;
+  public static final long MERGE_INTERVAL = 2000;
+
+  // Rough heap cost of an edit, and of each piece it holds
+  private static final int EDIT_COST  = 64;
+  private static final int PIECE_COST = 64;
+
+  // PRIVATE MEMBERS
+  private BinaryDocument bDoc;
+  private LinkedList undoUnits;  // oldest first
+  private LinkedList redoUnits;  // most recently undone last
+  private boolean replaying;
+  private long memoryBudget;
+  private long memoryUsed;
+
+  // Units spilled to disk, which are older than those in undoUnits
+  private RandomAccessFile spillFile;
+  private File spillPath;
+  private long [] spilledPositions;
+  private int spilledCount;
+  private long spillEnd;
+  private ArrayList storages;    // storage ids used in the spill file
+
+  // CONSTRUCTORS
+  UndoHistory( BinaryDocument bDoc ) {
+    this.bDoc = bDoc;
+    undoUnits = new LinkedList();
+    redoUnits = new LinkedList();
+    memoryBudget = DEFAULT_MEMORY_BUDGET;
+    spilledPositions = new long[16];
+    storages = new ArrayList();
+    bDoc.addObserver(this);
+  }
+
+  // GETTERS
+  public boolean canUndo() {
+    return !undoUnits.isEmpty() || spilledCount > 0;
+  }
+
+  public boolean canRedo() {
+    return !redoUnits.isEmpty();
+  }
+
+  /**
+   * Returns the number of units that can be undone.
+   */
+  public int getUndoCount() {
+    return undoUnits.size() + spilledCount;
+  }
+
+  /**
+   * Returns the number of units that can be redone.
+   */
+  public int getRedoCount() {
+    return redoUnits.size();
+  }
+
+  public long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  /**
+   * Returns an estimate of the heap used by the units held in memory.
+   */
+  public long getMemoryUsed() {
+    return memoryUsed;
+  }
+
+  // SETTERS
+  public void setMemoryBudget( long memoryBudget ) {
+    this.memoryBudget = memoryBudget;
+    trim();
+  }
+
+  // UNDO AND REDO
+  /**
+   * Undo the most recent unit of edits.
+   *
+   * @return false if there was nothing to undo.
+   */
+  public boolean undo() {
+    Unit unit = popUndo();
+    if (unit == null)
+      return false;
+
+    replaying = true;
+    bDoc.beginBatch();
+    try {
+      for (int i=unit.count-1; i>=0; i--) {
+        Edit edit = unit.edits[i];
+        bDoc.replace(edit.offset, edit.inserted.length(), edit.removed);
+      }
+    }
+    finally {
+      bDoc.commit();
+      replaying = false;
+    }
+
+    unit.open = false;
+    redoUnits.addLast(unit);
+    memoryUsed += unit.memory;
+    trim();
+    return true;
+  }
+
+  /**
+   * Redo the most recently undone unit of edits.
+   *
+   * @return false if there was nothing to redo.
+   */
+  public boolean redo() {
+    if (redoUnits.isEmpty())
+      return false;
+    Unit unit = (Unit) redoUnits.removeLast();
+
+    replaying = true;
+    bDoc.beginBatch();
+    try {
+      for (int i=0; i<unit.count; i++) {
+        Edit edit = unit.edits[i];
+        bDoc.replace(edit.offset, edit.removed.length(), edit.inserted);
+      }
+    }
+    finally {
+      bDoc.commit();
+      replaying = false;
+    }
+
+    undoUnits.addLast(unit);
+    return true;
+  }
+
+  /**
+   * End the current unit, so that the next edit starts a new one.
+   */
+  public void endUnit() {
+    if (!undoUnits.isEmpty())
+      ((Unit) undoUnits.getLast()).open = false;
+  }
+
+  /**
+   * Forget all edits.
+   */
+  public void clear() {
+    undoUnits.clear();
+    redoUnits.clear();
+    memoryUsed = 0;
+    spilledCount = 0;
+    spillEnd = 0;
+    storages.clear();
+    try {
+      if (spillFile != null) {
+        spillFile.close();
+        spillPath.delete();
+        spillFile = null;
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  // OBSERVER INTERFACE
+  public void update( Observable o, Object arg ) {
+    if (replaying || !(arg instanceof ContentChangedEvent))
+      return;
+    ContentChangedEvent e = (ContentChangedEvent) arg;
+    if (e.getRemoved() == null)
+      return;
+    record(e.getEditOffset(), e.getRemoved(), e.getInserted());
+  }
+
+  ////// PACKAGE PROTECTED
+  /**
+   * Copy the bytes of storage that the history refers to, so that storage
+   * can be overwritten or closed.
+   *
+   * @throws IOException if the bytes could not be copied.
+   */
+  void release( Storage storage ) throws IOException {
+    if (spilledCount > 0) {
+      // Bring everything back into memory, where the units can be changed
+      LinkedList units = new LinkedList();
+      while (spilledCount > 0)
+        units.addFirst(readSpilled());
+      units.addAll(undoUnits);
+      undoUnits = units;
+      storages.clear();
+    }
+
+    LinkedList [] lists = { undoUnits, redoUnits };
+    for (int l=0; l<lists.length; l++) {
+      Iterator u = lists[l].iterator();
+      while (u.hasNext()) {
+        Unit unit = (Unit) u.next();
+        for (int i=0; i<unit.count; i++) {
+          Edit edit = unit.edits[i];
+          edit.removed  = release(edit.removed, storage);
+          edit.inserted = release(edit.inserted, storage);
+        }
+      }
+    }
+    trim();
+  }
+
+  void close() {
+    clear();
+  }
+
+  ////// PRIVATE
+  private void record( long offset, PieceTable.Pieces removed, PieceTable.Pieces inserted ) {
+    if (!redoUnits.isEmpty()) {
+      Iterator i = redoUnits.iterator();
+      while (i.hasNext())
+        memoryUsed -= ((Unit) i.next()).memory;
+      redoUnits.clear();
+    }
+
+    long now = System.currentTimeMillis();
+    if (!undoUnits.isEmpty()) {
+      Unit last = (Unit) undoUnits.getLast();
+      if (last.open && now - last.time <= MERGE_INTERVAL && 
+          merge(last.edits[last.count-1], offset, removed, inserted)) {
+        last.time = now;
+        memoryUsed -= last.memory;
+        last.updateMemory();
+        memoryUsed += last.memory;
+        trim();
+        return;
+      }
+      last.open = false;
+    }
+
+    Unit unit = new Unit();
+    unit.add(new Edit(offset, removed, inserted));
+    unit.time = now;
+    unit.open = true;
+    unit.updateMemory();
+    undoUnits.addLast(unit);
+    memoryUsed += unit.memory;
+    trim();
+  }
+
+  /**
+   * Merge an edit of at most a byte into last, if the two together form
+   * a single replacement.
+   */
+  private boolean merge( Edit last, long offset, PieceTable.Pieces removed, PieceTable.Pieces inserted ) {
+    long removedLength  = removed.length();
+    long insertedLength = inserted.length();
+    if (removedLength > 1 || insertedLength > 1)
+      return false;
+
+    long lastInsertedLength = last.inserted.length();
+    long lastEnd = last.offset + lastInsertedLength;
+
+    if (offset == lastEnd) {
+      // Continues where the last edit ended: typing, or deleting forwards
+      last.removed  = last.removed.concat(removed);
+      last.inserted = bDoc.slice(last.offset, lastInsertedLength + insertedLength);
+    }
+    else if (lastInsertedLength == 0 && insertedLength == 0 && offset + removedLength == last.offset) {
+      // Deleting backwards
+      last.offset  = offset;
+      last.removed = removed.concat(last.removed);
+    }
+    else if (offset >= last.offset && offset + removedLength <= lastEnd) {
+      // Changes bytes that the last edit inserted
+      last.inserted = bDoc.slice(last.offset, lastInsertedLength - removedLength + insertedLength);
+    }
+    else {
+      return false;
+    }
+    return true;
+  }
+
+  private Unit popUndo() {
+    if (!undoUnits.isEmpty()) {
+      Unit unit = (Unit) undoUnits.removeLast();
+      memoryUsed -= unit.memory;
+      return unit;
+    }
+    if (spilledCount > 0)
+      return readSpilled();
+    return null;
+  }
+
+  /**
+   * Spill the oldest units until the memory used is within budget.
+   */
+  private void trim() {
+    try {
+      while (memoryUsed > memoryBudget && !undoUnits.isEmpty()) {
+        Unit unit = (Unit) undoUnits.removeFirst();
+        memoryUsed -= unit.memory;
+        writeSpilled(unit);
+      }
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void writeSpilled( Unit unit ) throws IOException {
+    if (spillFile == null) {
+      spillPath = File.createTempFile("jhexedit", ".undo");
+      spillPath.deleteOnExit();
+      spillFile = new RandomAccessFile(spillPath, "rw");
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream out = new DataOutputStream(bytes);
+    out.writeInt(unit.count);
+    for (int i=0; i<unit.count; i++) {
+      out.writeLong(unit.edits[i].offset);
+      writePieces(out, unit.edits[i].removed);
+      writePieces(out, unit.edits[i].inserted);
+    }
+    out.flush();
+
+    if (spilledCount == spilledPositions.length) {
+      long [] positions = new long[2*spilledPositions.length];
+      System.arraycopy(spilledPositions, 0, positions, 0, spilledCount);
+      spilledPositions = positions;
+    }
+    spilledPositions[spilledCount++] = spillEnd;
+    spillFile.seek(spillEnd);
+    spillFile.write(bytes.toByteArray());
+    spillEnd += bytes.size();
+  }
+
+  private Unit readSpilled() {
+    try {
+      long position = spilledPositions[--spilledCount];
+      byte [] bytes = new byte[(int) (spillEnd - position)];
+      spillFile.seek(position);
+      spillFile.readFully(bytes);
+      spillEnd = position;
+
+      DataInputStream in = new DataInputStream(new java.io.ByteArrayInputStream(bytes));
+      Unit unit = new Unit();
+      int count = in.readInt();
+      for (int i=0; i<count; i++) {
+        long offset = in.readLong();
+        PieceTable.Pieces removed = readPieces(in);
+        unit.add(new Edit(offset, removed, readPieces(in)));
+      }
+      unit.updateMemory();
+      return unit;
+    }
+    catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void writePieces( DataOutputStream out, PieceTable.Pieces pieces ) throws IOException {
+    out.writeInt(pieces.getPieceCount());
+    PieceTable.PieceIterator i = pieces.iterator();
+    while (i.next()) {
+      int id = storages.indexOf(i.storage);
+      if (id < 0) {
+        id = storages.size();
+        storages.add(i.storage);
+      }
+      out.writeInt(id);
+      out.writeLong(i.start);
+      out.writeLong(i.length);
+    }
+  }
+
+  private PieceTable.Pieces readPieces( DataInputStream in ) throws IOException {
+    PieceTable.Pieces pieces = PieceTable.Pieces.EMPTY;
+    int count = in.readInt();
+    for (int i=0; i<count; i++) {
+      Storage storage = (Storage) storages.get(in.readInt());
+      long start = in.readLong();
+      pieces = pieces.concat(PieceTable.Pieces.of(storage, start, in.readLong()));
+    }
+    return pieces;
+  }
+
+  /**
+   * Returns pieces, with the bytes of any piece from storage copied to the 
+   * retained storage of the document.
+   */
+  private PieceTable.Pieces release( PieceTable.Pieces pieces, Storage storage ) throws IOException {
+    if (!pieces.refersTo(storage))
+      return pieces;
+    return pieces.retain(storage, bDoc.getRetained());
+  }
+
+  //////////////////////////
+  // INNER CLASSES
+
+  /**
+   * A replacement of the removed pieces by the inserted pieces at offset.
+   */
+  private static class Edit {
+    long offset;
+    PieceTable.Pieces removed;
+    PieceTable.Pieces inserted;
+
+    Edit( long offset, PieceTable.Pieces removed, PieceTable.Pieces inserted ) {
+      this.offset   = offset;
+      this.removed  = removed;
+      this.inserted = inserted;
+    }
+  }
+
+  /**
+   * Edits that are undone and redone together.
+   */
+  private static class Unit {
+    Edit [] edits = new Edit[1];
+    int count;
+    long time;
+    long memory;
+    boolean open;   // later edits may still be merged into this unit
+
+    void add( Edit edit ) {
+      if (count == edits.length) {
+        Edit [] edits = new Edit[2*this.edits.length];
+        System.arraycopy(this.edits, 0, edits, 0, count);
+        this.edits = edits;
+      }
+      edits[count++] = edit;
+    }
+
+    void updateMemory() {
+      memory = 0;
+      for (int i=0; i<count; i++)
+        memory += EDIT_COST + PIECE_COST * (edits[i].removed.getPieceCount() + edits[i].inserted.getPieceCount());
+    }
+  }
+}
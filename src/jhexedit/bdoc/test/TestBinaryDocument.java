@@ -1,10 +1,25 @@
 package jhexedit.bdoc.test;
 
+import java.awt.datatransfer.StringSelection;
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.charset.Charset;
 import java.util.*;
 
+import jhexedit.ByteEditor;
+import jhexedit.CharEditor;
 import jhexedit.bdoc.BinaryDocument;
+import jhexedit.bdoc.ByteSearch;
 import jhexedit.bdoc.ByteSpan;
 import jhexedit.bdoc.ContentChangedEvent;
+import jhexedit.bdoc.Cursor;
+import jhexedit.bdoc.DigitInputStream;
+import jhexedit.bdoc.DocumentSavedEvent;
+import jhexedit.bdoc.PageCache;
+import jhexedit.bdoc.Position;
+import jhexedit.bdoc.ReadAhead;
+import jhexedit.bdoc.Snapshot;
+import jhexedit.bdoc.UndoHistory;
 
 import junit.framework.TestCase;
 
@@ -56,6 +71,913 @@ public class TestBinaryDocument extends TestCase {
 		assertEquals(0, span.getStartLocation().getOffset());
 	}
 
+	public void testInsertAndDeleteInMiddle() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		doc.insert(doc.createOffset(0), "ABCDEFG".getBytes());
+		doc.insert(doc.createOffset(2), "XYZ".getBytes());
+		assertEquals("ABXYZCDEFG", readAll(doc));
+		assertEquals(3, doc.delete(doc.createOffset(1), 3));
+		assertEquals("AZCDEFG", readAll(doc));
+		doc.write(doc.createOffset(5), "123".getBytes());
+		assertEquals("AZCDE123", readAll(doc));
+		assertEquals(4, doc.delete(doc.createOffset(4), 10));
+		assertEquals("AZCD", readAll(doc));
+	}
+
+	public void testManyRandomEdits() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		StringBuilder expected = new StringBuilder();
+		Random random = new Random(42);
+		for (int i = 0; i < 2000; i++) {
+			int offset = random.nextInt(expected.length() + 1);
+			if (random.nextInt(3) == 0 && expected.length() > 0) {
+				int len = random.nextInt(5) + 1;
+				doc.delete(doc.createOffset(offset), len);
+				expected.delete(offset, Math.min(offset + len, expected.length()));
+			} else {
+				char c = (char) ('a' + random.nextInt(26));
+				doc.insert(doc.createOffset(offset), c);
+				expected.insert(offset, c);
+			}
+		}
+		assertEquals(expected.toString(), readAll(doc));
+	}
+
+	public void testDeleteEventCarriesOldContent() throws Exception {
+		DocumentObserver observer = new DocumentObserver();
+		BinaryDocument doc = new BinaryDocument();
+		doc.insert(doc.createOffset(0), "ABCDEFG".getBytes());
+		doc.addObserver(observer);
+		doc.delete(doc.createOffset(2), 3);
+		ContentChangedEvent event = (ContentChangedEvent) observer.events.getFirst();
+		assertEquals(ContentChangedEvent.DELETED, event.getType());
+		assertEquals("CDE", new String(event.getOldContent()));
+	}
+
+	public void testAppendingByteByByte() throws Exception {
+		int n = 3 * (1 << 16) + 7;
+		BinaryDocument doc = new BinaryDocument();
+		doc.ensureCapacity(n);
+		for (int i = 0; i < n; i++) {
+			doc.insert(doc.createOffset(i), (byte) i);
+		}
+		assertEquals(n, doc.length());
+		byte[] b = new byte[n];
+		doc.read(doc.createOffset(0), b);
+		for (int i = 0; i < n; i++) {
+			assertEquals((byte) i, b[i]);
+		}
+	}
+
+	public void testOldContentIsReadOnDemand() throws Exception {
+		DocumentObserver observer = new DocumentObserver();
+		BinaryDocument doc = new BinaryDocument();
+		long length = 3L << 30;
+		doc.write(doc.createOffset(length - 1), 'z');
+		doc.write(doc.createOffset(10), "AB".getBytes());
+		doc.addObserver(observer);
+
+		doc.write(doc.createOffset(length - 1), "xyz".getBytes());
+		ContentChangedEvent event = (ContentChangedEvent) observer.events.removeFirst();
+		assertEquals(3, event.getOldContentLength());
+		assertTrue(Arrays.equals(new byte[] {'z', 0, 0}, event.getOldContent()));
+
+		doc.delete(doc.createOffset(0), length);
+		event = (ContentChangedEvent) observer.events.removeFirst();
+		assertEquals(length, event.getOldContentLength());
+		assertNull(event.getOldContent());
+		byte[] b = new byte[4];
+		assertEquals(4, event.readOldContent(9, b, 0, 4));
+		assertTrue(Arrays.equals(new byte[] {0, 'A', 'B', 0}, b));
+		assertEquals(1, event.readOldContent(length - 1, b, 0, 4));
+		assertEquals('x', b[0]);
+		assertEquals("yz", readAll(doc));
+	}
+
+	public void testReadAcrossStorageChunks() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		byte[] buf = new byte[200000];
+		for (int i = 0; i < buf.length; i++) {
+			buf[i] = (byte) (i * 7);
+		}
+		doc.insert(doc.createOffset(0), buf);
+		byte[] buf2 = new byte[100000];
+		assertEquals(buf2.length, doc.read(doc.createOffset(60000), buf2));
+		for (int i = 0; i < buf2.length; i++) {
+			assertEquals(buf[60000 + i], buf2[i]);
+		}
+	}
+
+	public void testAddressingBeyondTwoGigabytes() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		long offset = 3L << 30;
+		doc.write(doc.createOffset(offset), 0x5A);
+		assertEquals(offset + 1, doc.length());
+		assertEquals(0x5A, doc.read(doc.createOffset(offset)));
+		assertEquals(0, doc.read(doc.createOffset(offset - 1)));
+
+		doc.insert(doc.createOffset(1), new byte[] {1, 2});
+		assertEquals(0x5A, doc.read(doc.createOffset(offset + 2)));
+		assertEquals(offset + 2, doc.delete(doc.createOffset(1), offset + 2));
+		assertEquals(1, doc.length());
+
+		assertTrue(doc.createOffset(offset).compareTo(doc.createOffset(0)) > 0);
+		assertTrue(doc.createOffset(0).compareTo(doc.createOffset(offset)) < 0);
+	}
+
+	public void testMemoryMappedDocument() throws Exception {
+		File file = createFile("ABCDEFG");
+		BinaryDocument doc = new BinaryDocument(file, false, BinaryDocument.MEMORY_MAPPED);
+		assertEquals(7, doc.length());
+		assertEquals("ABCDEFG", readAll(doc));
+		doc.insert(doc.createOffset(2), "XYZ".getBytes());
+		doc.delete(doc.createOffset(8), 2);
+		assertEquals("ABXYZCDE", readAll(doc));
+		doc.save();
+		assertEquals("ABXYZCDE", readFile(file));
+		doc.write(doc.createOffset(0), 'a');
+		assertEquals("aBXYZCDE", readAll(doc));
+		doc.close();
+	}
+
+	public void testPagedDocument() throws Exception {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 3 * PageCache.PAGE_SIZE; i++) {
+			content.append((char) ('a' + i % 26));
+		}
+		File file = createFile(content.toString());
+		PageCache cache = PageCache.getShared();
+		BinaryDocument doc = new BinaryDocument(file, false, BinaryDocument.PAGED);
+		assertEquals(content.length(), doc.length());
+
+		cache.resetStatistics();
+		byte[] buf = new byte[10];
+		doc.read(doc.createOffset(PageCache.PAGE_SIZE - 5), buf);
+		assertEquals(content.substring(PageCache.PAGE_SIZE - 5, PageCache.PAGE_SIZE + 5), new String(buf));
+		assertEquals(2, cache.getMissCount());
+		doc.read(doc.createOffset(PageCache.PAGE_SIZE - 5), buf);
+		assertEquals(2, cache.getHitCount());
+
+		doc.insert(doc.createOffset(1), "XYZ".getBytes());
+		assertTrue(cache.getPinnedMemory() > 0);
+		doc.save();
+		content.insert(1, "XYZ");
+		assertEquals(content.toString(), readFile(file));
+		assertEquals(content.toString(), readAll(doc));
+		doc.close();
+	}
+
+	public void testIncrementalSave() throws Exception {
+		File file = createFile("ABCDEFGHIJ");
+		BinaryDocument doc = new BinaryDocument(file);
+		doc.write(doc.createOffset(3), 'x');
+		doc.save();
+		assertEquals("ABCxEFGHIJ", readFile(file));
+
+		doc.delete(doc.createOffset(0), 2);
+		doc.save();
+		assertEquals("CxEFGHIJ", readFile(file));
+
+		doc.insert(doc.createOffset(1), "12".getBytes());
+		doc.write(doc.createOffset(8), 'y');
+		doc.save();
+		assertEquals("C12xEFGHyJ", readFile(file));
+
+		doc.write(doc.createOffset(0), 'c');
+		doc.save();
+		assertEquals("c12xEFGHyJ", readFile(file));
+		doc.close();
+	}
+
+	public void testIncrementalSaveOfMappedDocument() throws Exception {
+		File file = createFile("ABCDEFGHIJ");
+		BinaryDocument doc = new BinaryDocument(file, false, BinaryDocument.MEMORY_MAPPED);
+		doc.delete(doc.createOffset(8), 1);
+		doc.insert(doc.createOffset(0), "12".getBytes());
+		doc.write(doc.createOffset(5), 'x');
+		doc.save();
+		assertEquals("12ABCxEFGHJ", readFile(file));
+		assertEquals("12ABCxEFGHJ", readAll(doc));
+
+		doc.delete(doc.createOffset(0), 3);
+		doc.save();
+		assertEquals("BCxEFGHJ", readFile(file));
+		assertEquals("BCxEFGHJ", readAll(doc));
+		doc.close();
+	}
+
+	public void testStreamingSaveAs() throws Exception {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 8 * PageCache.PAGE_SIZE; i++) {
+			content.append((char) ('a' + i % 26));
+		}
+		File file = createFile(content.toString());
+		File copy = createFile("");
+		PageCache cache = PageCache.getShared();
+		BinaryDocument doc = new BinaryDocument(file, false, BinaryDocument.PAGED);
+		doc.insert(doc.createOffset(3 * PageCache.PAGE_SIZE), "XYZ".getBytes());
+		doc.write(doc.createOffset(5), '!');
+		content.insert(3 * PageCache.PAGE_SIZE, "XYZ");
+		content.setCharAt(5, '!');
+		assertEquals(content.toString(), readAll(doc));
+
+		cache.resetStatistics();
+		doc.saveAs(copy);
+		assertEquals(0, cache.getMissCount());
+		assertEquals(content.toString(), readFile(copy));
+		assertEquals(copy, doc.getFile());
+
+		doc.delete(doc.createOffset(0), 2);
+		doc.save();
+		assertEquals(content.substring(2), readFile(copy));
+		assertEquals(content.substring(2), readAll(doc));
+		doc.close();
+	}
+
+	public void testAtomicSave() throws Exception {
+		File dir = java.nio.file.Files.createTempDirectory("jhexedit").toFile();
+		File file = new File(dir, "atomic.bin");
+		createFile("ABCDEFGHIJ").renameTo(file);
+		file.setExecutable(true);
+		final List events = new ArrayList();
+		BinaryDocument doc = new BinaryDocument(file, false, BinaryDocument.MEMORY_MAPPED);
+		doc.addObserver(new Observer() {
+			public void update(Observable o, Object arg) {
+				if (arg instanceof DocumentSavedEvent)
+					events.add(arg);
+			}
+		});
+		doc.setSaveMode(BinaryDocument.SAVE_ATOMIC);
+		doc.insert(doc.createOffset(2), "12".getBytes());
+		doc.write(doc.createOffset(20), 'z');
+		doc.save();
+
+		String expected = "AB12CDEFGHIJ\0\0\0\0\0\0\0\0z";
+		assertEquals(expected, readFile(file));
+		assertEquals(expected, readAll(doc));
+		assertTrue(file.canExecute());
+		assertEquals(1, dir.list().length);
+		assertFalse(doc.isModified());
+
+		DocumentSavedEvent e = (DocumentSavedEvent) events.get(0);
+		assertEquals(DocumentSavedEvent.SAVE, e.getType());
+		assertEquals(file, e.getFile());
+		assertTrue(e.getBytesWritten() >= 13);
+		assertTrue(e.getBytesWritten() < expected.length());
+
+		doc.delete(doc.createOffset(0), 4);
+		doc.save();
+		assertEquals(expected.substring(4), readFile(file));
+		assertEquals(2, events.size());
+		doc.close();
+		file.delete();
+		dir.delete();
+	}
+
+	public void testPositionsFollowEdits() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		doc.insert(doc.createOffset(0), new byte[100]);
+		Position[] positions = new Position[101];
+		for (int i = 0; i <= 100; i++) {
+			positions[i] = doc.createPosition(i);
+		}
+		assertEquals(10, doc.createPosition(10).getOffset());
+
+		doc.insert(doc.createOffset(50), new byte[5]);
+		doc.delete(doc.createOffset(20), 10);
+		doc.insert(doc.createOffset(0), new byte[1]);
+		doc.delete(doc.createOffset(90), 100);
+		for (int i = 0; i <= 100; i++) {
+			long expected = i;
+			if (expected > 50) expected += 5;
+			if (expected > 20) expected = Math.max(20, expected - 10);
+			if (expected > 0) expected += 1;
+			if (expected > 90) expected = 90;
+			assertEquals(expected, positions[i].getOffset());
+		}
+
+		for (int i = 0; i <= 100; i++) {
+			if (i % 4 != 1) positions[i].dispose();
+		}
+		doc.insert(doc.createOffset(40), new byte[3]);
+		for (int i = 1; i <= 100; i += 4) {
+			long expected = i;
+			if (expected > 50) expected += 5;
+			if (expected > 20) expected = Math.max(20, expected - 10);
+			if (expected > 0) expected += 1;
+			if (expected > 90) expected = 90;
+			if (expected > 40) expected += 3;
+			assertEquals(expected, positions[i].getOffset());
+		}
+		assertEquals(21, doc.createPosition(21).getOffset());
+	}
+
+	public void testUnreachablePositionsAreReleased() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		doc.insert(doc.createOffset(0), new byte[1000]);
+		Position kept = doc.createPosition(500);
+		for (int i = 0; i < 1000; i++) {
+			callHook(Position.class, doc.createPosition(i), "enqueue", null, null);
+		}
+		doc.insert(doc.createOffset(1000), new byte[1]);
+		assertEquals(1, doc.getAnchorCount());
+		assertEquals(500, kept.getOffset());
+	}
+
+	public void testCursorMovesItsOwnPosition() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		doc.insert(doc.createOffset(0), "ABCDEFGH".getBytes());
+		Position shared = doc.createPosition(2);
+		Cursor cursor = doc.createCursor(doc.createOffset(2));
+		Position position = cursor.getPosition();
+		int before = doc.getAnchorCount();
+
+		byte[] b = new byte[3];
+		cursor.read(b);
+		cursor.read();
+		assertEquals("CDE", new String(b));
+		assertSame(position, cursor.getPosition());
+		assertEquals(6, position.getOffset());
+		assertEquals(2, shared.getOffset());
+		assertEquals(before, doc.getAnchorCount());
+
+		doc.insert(doc.createOffset(0), "xy".getBytes());
+		assertEquals(8, position.getOffset());
+		cursor.seek(doc.createOffset(1));
+		assertEquals(1, position.getOffset());
+		assertEquals(4, shared.getOffset());
+	}
+
+	public void testCursorStreaming() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		doc.insert(doc.createOffset(0), new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 0, 14});
+		Cursor cursor = doc.createCursor(doc.createOffset(0));
+		final int[] notifications = new int[1];
+		cursor.addObserver(new Observer() {
+			public void update(Observable o, Object arg) {
+				notifications[0]++;
+			}
+		});
+
+		assertEquals(0x01020304, cursor.readInt());
+		cursor.setByteOrder(java.nio.ByteOrder.LITTLE_ENDIAN);
+		assertEquals(0x0605, cursor.readShort());
+		assertEquals(2, notifications[0]);
+
+		cursor.setNotifying(false);
+		java.nio.ByteBuffer direct = java.nio.ByteBuffer.allocateDirect(3);
+		assertEquals(3, cursor.read(direct));
+		assertEquals(9, direct.get(2));
+		doc.write(doc.createOffset(9), 0x7F);
+		assertEquals(0x7F, cursor.read());
+		assertEquals(2, notifications[0]);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertEquals(4, cursor.transferTo(java.nio.channels.Channels.newChannel(out), 100));
+		assertEquals(4, out.size());
+		assertEquals(0, out.toByteArray()[2]);
+		assertEquals(-1, cursor.read());
+
+		cursor.seek(doc.createOffset(12));
+		assertEquals(0, cursor.read());
+		assertEquals(1, cursor.skip(100L));
+		assertEquals(0, cursor.skip(100L));
+		try {
+			cursor.seek(doc.createOffset(10));
+			cursor.readLong();
+			fail();
+		} catch (EOFException e) {
+		}
+	}
+
+	public void testUndoAndRedo() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		UndoHistory history = doc.getUndoHistory();
+		doc.insert(doc.createOffset(0), "ABCDEFGH".getBytes());
+		history.endUnit();
+		doc.write(doc.createOffset(2), "xy".getBytes());
+		history.endUnit();
+		doc.delete(doc.createOffset(5), 2);
+		history.endUnit();
+		doc.write(doc.createOffset(8), "z".getBytes());
+		assertEquals("ABxyEH\0\0z", readAll(doc));
+		assertEquals(4, history.getUndoCount());
+
+		assertTrue(history.undo());
+		assertEquals("ABxyEH", readAll(doc));
+		assertTrue(history.undo());
+		assertEquals("ABxyEFGH", readAll(doc));
+		assertTrue(history.undo());
+		assertEquals("ABCDEFGH", readAll(doc));
+		assertTrue(history.undo());
+		assertEquals("", readAll(doc));
+		assertFalse(history.undo());
+
+		assertTrue(history.redo());
+		assertTrue(history.redo());
+		assertEquals("ABxyEFGH", readAll(doc));
+		doc.insert(doc.createOffset(0), "!".getBytes());
+		assertFalse(history.canRedo());
+		assertEquals("!ABxyEFGH", readAll(doc));
+	}
+
+	public void testTypingIsUndoneInOneStep() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		UndoHistory history = doc.getUndoHistory();
+		doc.insert(doc.createOffset(0), "0123456789".getBytes());
+		history.endUnit();
+
+		for (int i = 0; i < 4; i++) {
+			doc.write(doc.createOffset(2 + i), 0x10);
+			doc.write(doc.createOffset(2 + i), 0x1F);
+		}
+		doc.insert(doc.createOffset(6), 'a');
+		doc.insert(doc.createOffset(7), 'b');
+		assertEquals(2, history.getUndoCount());
+		history.undo();
+		assertEquals("0123456789", readAll(doc));
+
+		doc.delete(doc.createOffset(9), 1);
+		doc.delete(doc.createOffset(8), 1);
+		doc.delete(doc.createOffset(7), 1);
+		doc.delete(doc.createOffset(3), 1);
+		assertEquals(3, history.getUndoCount());
+		history.undo();
+		assertEquals("0123456", readAll(doc));
+		history.undo();
+		assertEquals("0123456789", readAll(doc));
+	}
+
+	public void testUndoAfterSavingInPlace() throws Exception {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 4 * PageCache.PAGE_SIZE; i++) {
+			content.append((char) ('a' + i % 26));
+		}
+		File file = createFile(content.toString());
+		BinaryDocument doc = new BinaryDocument(file, false, BinaryDocument.PAGED);
+		doc.delete(doc.createOffset(10), 3 * PageCache.PAGE_SIZE);
+		doc.write(doc.createOffset(0), 'X');
+		doc.save();
+		assertEquals(content.length() - 3 * PageCache.PAGE_SIZE, readFile(file).length());
+
+		doc.getUndoHistory().undo();
+		doc.getUndoHistory().undo();
+		assertEquals(content.toString(), readAll(doc));
+		doc.save();
+		assertEquals(content.toString(), readFile(file));
+		doc.close();
+	}
+
+	public void testUndoHistorySpillsToDisk() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		UndoHistory history = doc.getUndoHistory();
+		history.setMemoryBudget(1000);
+		for (int i = 0; i < 200; i++) {
+			doc.insert(doc.createOffset(i / 2), new byte[] {(byte) i, (byte) i});
+		}
+		byte[] expected = new byte[400];
+		doc.read(doc.createOffset(0), expected);
+		assertTrue(history.getMemoryUsed() <= 1000);
+		assertEquals(200, history.getUndoCount());
+
+		for (int i = 0; i < 150; i++) {
+			assertTrue(history.undo());
+		}
+		for (int i = 0; i < 150; i++) {
+			assertTrue(history.redo());
+		}
+		byte[] b = new byte[400];
+		doc.read(doc.createOffset(0), b);
+		assertTrue(Arrays.equals(expected, b));
+
+		while (history.undo()) {
+		}
+		assertEquals(0, doc.length());
+	}
+
+	public void testBatchIsNotifiedAndUndoneAsOneChange() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		doc.insert(doc.createOffset(0), "ABCDEFGHIJ".getBytes());
+		final List events = new ArrayList();
+		doc.addObserver(new Observer() {
+			public void update(Observable o, Object arg) {
+				events.add(arg);
+			}
+		});
+
+		doc.beginBatch();
+		doc.delete(doc.createOffset(2), 3);
+		doc.insert(doc.createOffset(2), "xy".getBytes());
+		doc.beginBatch();
+		doc.write(doc.createOffset(6), '!');
+		doc.commit();
+		assertEquals(0, events.size());
+		doc.commit();
+
+		assertEquals("ABxyFG!IJ", readAll(doc));
+		assertEquals(1, events.size());
+		ContentChangedEvent e = (ContentChangedEvent) events.get(0);
+		assertEquals(ContentChangedEvent.REPLACED, e.getType());
+		assertEquals(2, e.getSpan().getStartLocation().getOffset());
+		assertEquals(5, e.getSpan().length());
+		assertEquals("CDEFGH", new String(e.getOldContent()));
+
+		assertEquals(2, doc.getUndoHistory().getUndoCount());
+		assertTrue(doc.getUndoHistory().undo());
+		assertEquals("ABCDEFGHIJ", readAll(doc));
+		assertEquals(2, events.size());
+
+		try {
+			doc.commit();
+			fail();
+		}
+		catch (IllegalStateException expected) {
+		}
+	}
+
+	public void testSnapshotsOutliveTheirDocument() throws Exception {
+		File file = createFile("ABCDEFGHIJ");
+		BinaryDocument a = new BinaryDocument(file, false, BinaryDocument.MEMORY_MAPPED);
+		Snapshot snapshot = a.snapshot(a.createOffset(2), 4);
+		a.insert(a.createOffset(10), snapshot);
+		assertEquals("ABCDEFGHIJCDEF", readAll(a));
+
+		BinaryDocument b = new BinaryDocument();
+		b.insert(b.createOffset(0), "xy".getBytes());
+		b.insert(b.createOffset(1), snapshot);
+		assertEquals("xCDEFy", readAll(b));
+
+		// Shift the bytes of the file under the snapshot
+		a.delete(a.createOffset(0), 3);
+		a.save();
+		assertEquals("DEFGHIJCDEF", readFile(file));
+		assertEquals("xCDEFy", readAll(b));
+		a.close();
+
+		byte[] buffer = new byte[4];
+		assertEquals(4, snapshot.read(0, buffer, 0, 4));
+		assertEquals("CDEF", new String(buffer));
+		b.write(b.createOffset(4), snapshot);
+		assertEquals("xCDECDEF", readAll(b));
+		assertTrue(b.getUndoHistory().undo());
+		assertEquals("xCDEFy", readAll(b));
+		assertTrue(b.getUndoHistory().undo());
+		assertEquals("xy", readAll(b));
+		b.close();
+	}
+
+	public void testPastingOneSnapshotManyTimes() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		doc.insert(doc.createOffset(0), "abc".getBytes());
+		Snapshot snapshot = doc.snapshot(doc.createOffset(0), 3);
+		StringBuilder expected = new StringBuilder("abc");
+		for (int i = 0; i < 100000; i++) {
+			doc.insert(doc.createOffset(doc.length()), snapshot);
+			expected.append("abc");
+		}
+		// Split the pasted pieces
+		for (int i = 1; i < 1000; i++) {
+			doc.insert(doc.createOffset(i * 300 + i % 3), new byte[] { 'x' });
+			expected.insert(i * 300 + i % 3, 'x');
+		}
+		assertEquals(expected.toString(), readAll(doc));
+	}
+
+	public void testSnapshotsDeleteTheirSpillFiles() throws Exception {
+		File file = createFile("ABCDEFGHIJ");
+		BinaryDocument a = new BinaryDocument(file, false, BinaryDocument.MEMORY_MAPPED);
+		Snapshot snapshot = a.snapshot(a.createOffset(2), 4);
+		Set before = spillFiles();
+		a.close();
+		Set spilled = spillFiles();
+		spilled.removeAll(before);
+		assertEquals(1, spilled.size());
+		File spill = (File) spilled.iterator().next();
+
+		BinaryDocument b = new BinaryDocument();
+		b.insert(b.createOffset(0), "xy".getBytes());
+		b.insert(b.createOffset(1), snapshot);
+		snapshot.dispose();
+		assertFalse(spill.exists());
+		assertEquals(0, snapshot.length());
+		assertEquals("xCDEFy", readAll(b));
+		assertTrue(b.getUndoHistory().undo());
+		assertTrue(b.getUndoHistory().redo());
+		assertEquals("xCDEFy", readAll(b));
+
+		// An unreachable snapshot is released when the next one is taken
+		a = new BinaryDocument(file, false, BinaryDocument.MEMORY_MAPPED);
+		snapshot = a.snapshot(a.createOffset(0), 2);
+		before = spillFiles();
+		a.close();
+		spilled = spillFiles();
+		spilled.removeAll(before);
+		assertEquals(1, spilled.size());
+		spill = (File) spilled.iterator().next();
+		b.insert(b.createOffset(0), snapshot);
+		callHook(BinaryDocument.class, null, "enqueue", Snapshot.class, snapshot);
+		assertTrue(spill.exists());
+		b.snapshot(b.createOffset(0), 1);
+		assertFalse(spill.exists());
+		assertEquals("ABxCDEFy", readAll(b));
+		b.close();
+	}
+
+	public void testDisposedSnapshotsAreNotKept() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		doc.insert(doc.createOffset(0), "ABCDEFGHIJ".getBytes());
+		Snapshot kept = doc.snapshot(doc.createOffset(2), 4);
+		int before = ((Integer) callHook(BinaryDocument.class, null, "getSharerCount", null, null)).intValue();
+		for (int i = 0; i < 10000; i++) {
+			doc.snapshot(doc.createOffset(0), 1).dispose();
+		}
+		int after = ((Integer) callHook(BinaryDocument.class, null, "getSharerCount", null, null)).intValue();
+		assertTrue(after <= 2 * Math.max(before, 16) + 1);
+		assertEquals(4, kept.length());
+	}
+
+	public void testSnapshotPastedBackOutlivesDispose() throws Exception {
+		File file = createFile("ABCDEFGHIJ");
+		BinaryDocument doc = new BinaryDocument(file, false, BinaryDocument.MEMORY_MAPPED);
+		Snapshot snapshot = doc.snapshot(doc.createOffset(2), 4);
+		doc.write(doc.createOffset(2), "wxyz".getBytes());
+		doc.save();
+		assertEquals("ABwxyzGHIJ", readFile(file));
+
+		// The snapshot now refers to its own temporary file
+		doc.insert(doc.createOffset(0), snapshot);
+		snapshot.dispose();
+		assertEquals("CDEFABwxyzGHIJ", readAll(doc));
+		assertTrue(doc.getUndoHistory().undo());
+		assertTrue(doc.getUndoHistory().redo());
+		assertEquals("CDEFABwxyzGHIJ", readAll(doc));
+		doc.save();
+		assertEquals("CDEFABwxyzGHIJ", readFile(file));
+		doc.close();
+	}
+
+	public void testReadAheadWarmsThePageCache() throws Exception {
+		StringBuilder content = new StringBuilder();
+		for (int i = 0; i < 4 * PageCache.PAGE_SIZE; i++) {
+			content.append((char) ('a' + i % 26));
+		}
+		File file = createFile(content.toString());
+		PageCache cache = PageCache.getShared();
+		BinaryDocument doc = new BinaryDocument(file, false, BinaryDocument.PAGED);
+		doc.insert(doc.createOffset(PageCache.PAGE_SIZE + 10), "XYZ".getBytes());
+		content.insert(PageCache.PAGE_SIZE + 10, "XYZ");
+
+		cache.resetStatistics();
+		ReadAhead cancelled = doc.readAhead(doc.createOffset(0), PageCache.PAGE_SIZE);
+		cancelled.cancel();
+		cancelled.run();
+		assertEquals(0, cache.getMissCount());
+
+		// The inserted bytes are skipped; the file's pages 1 and 2 are read
+		ReadAhead readAhead = doc.readAhead(doc.createOffset(PageCache.PAGE_SIZE), 2 * PageCache.PAGE_SIZE);
+		Thread t = new Thread(readAhead);
+		t.start();
+		t.join();
+		assertFalse(readAhead.isCancelled());
+		assertEquals(2, cache.getMissCount());
+
+		byte[] buf = new byte[2 * PageCache.PAGE_SIZE];
+		doc.read(doc.createOffset(PageCache.PAGE_SIZE), buf);
+		assertEquals(content.substring(PageCache.PAGE_SIZE, 3 * PageCache.PAGE_SIZE), new String(buf));
+		assertEquals(2, cache.getMissCount());
+		doc.close();
+	}
+
+	public void testSearchFindsPatternsAcrossChunks() throws Exception {
+		int chunk = 16 * PageCache.PAGE_SIZE;
+		byte[] content = new byte[3 * chunk + 100];
+		new Random(7).nextBytes(content);
+		byte[] pattern = { (byte) 0xde, (byte) 0xad, (byte) 0xbe, (byte) 0xef, 0x42 };
+		long[] expected = { 0, chunk - 2, 2 * chunk - 4, content.length - 5 };
+		for (int i = 0; i < expected.length; i++) {
+			System.arraycopy(pattern, 0, content, (int) expected[i], pattern.length);
+		}
+		BinaryDocument doc = new BinaryDocument();
+		doc.insert(doc.createOffset(0), content);
+
+		ByteSearch search = ByteSearch.forHex("0xde, 0xad beef 42");
+		assertTrue(Arrays.equals(pattern, search.getPattern()));
+		ByteSearch.Matches matches = search.matches(doc.createOffset(0));
+		List found = new ArrayList();
+		for (Position p = matches.next(); p != null; p = matches.next()) {
+			found.add(p);
+		}
+		assertEquals(expected.length, found.size());
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], ((Position) found.get(i)).getOffset());
+		}
+
+		// Matches follow edits, and a span must hold the whole match
+		doc.insert(doc.createOffset(1), "XYZ".getBytes());
+		long moved = expected[1] + 3;
+		assertEquals(moved, ((Position) found.get(1)).getOffset());
+		assertNull(search.find(new ByteSpan(doc.createOffset(4), doc.createOffset(moved + 3))));
+		assertEquals(moved, search.find(new ByteSpan(doc.createOffset(4), doc.createOffset(moved + 4))).getOffset());
+
+		doc.insert(doc.createOffset(10), "h\u00e9llo".getBytes("UTF-16LE"));
+		assertEquals(10, ByteSearch.forText("h\u00e9llo", Charset.forName("UTF-16LE")).find(doc.createOffset(0)).getOffset());
+		assertNull(ByteSearch.forText("h\u00e9llo", Charset.forName("UTF-8")).find(doc.createOffset(0)));
+		doc.close();
+
+		// Overlapping matches in a two letter alphabet, against a naive search
+		StringBuilder text = new StringBuilder();
+		Random random = new Random(11);
+		for (int i = 0; i < chunk + 1000; i++) {
+			text.append(random.nextBoolean() ? 'a' : 'b');
+		}
+		doc = new BinaryDocument();
+		doc.insert(doc.createOffset(0), text.toString().getBytes());
+		matches = ByteSearch.forText("abaab", Charset.forName("US-ASCII")).matches(doc.createOffset(0));
+		for (int i = text.indexOf("abaab"); i >= 0; i = text.indexOf("abaab", i + 1)) {
+			assertEquals(i, matches.next().getOffset());
+		}
+		assertNull(matches.next());
+		doc.close();
+	}
+
+	public void testHexPatternsAreReadLikePastedHex() throws Exception {
+		// 0x is only a prefix at the start of a run; elsewhere x separates
+		byte[] expected = { (byte) 0xde, (byte) 0xad, 0x10, 0x00, 0x05, 0x0f };
+		assertTrue(Arrays.equals(expected, ByteSearch.forHex("0xde,0XAD 100x5 f").getPattern()));
+		assertTrue(Arrays.equals(new byte[] { 0x12, 0x34 }, ByteSearch.forHex("0x12 0x34").getPattern()));
+		assertTrue(Arrays.equals(new byte[] { 0x00, 0x12 }, ByteSearch.forHex("00x12").getPattern()));
+	}
+
+	public void testDigitsAreSplitIntoBytes() throws Exception {
+		// Odd digit counts: the rest of a run is a byte of its own
+		assertBytes(new int[] { 0xab, 0x0c }, readDigits("abc", 16, 2));
+		assertBytes(new int[] { 0x0a, 0x0b, 0x0c }, readDigits("a b c", 16, 2));
+		assertBytes(new int[] { 0xde, 0xad, 0xbe, 0x0e, 0x0f }, readDigits("deadbee f", 16, 2));
+
+		// Any non-digit separates runs
+		assertBytes(new int[] { 0xde, 0xad, 0xbe, 0xef, 0xff, 0x00 },
+				readDigits("de,ad; be-ef\tff\r\n00", 16, 2));
+		assertBytes(new int[] { 0x01, 0x02 }, readDigits(",,1 ,  2,,", 16, 2));
+		assertBytes(new int[0], readDigits(" ,;-\n", 16, 2));
+
+		// 0x is a prefix only at the start of a run
+		assertBytes(new int[] { 0x12, 0x00, 0x05 }, readDigits("120x5", 16, 2));
+		assertBytes(new int[] { 0x12, 0x34 }, readDigits("0x12,0X34", 16, 2));
+		assertBytes(new int[] { 0xa0, 0x0b }, readDigits("0xa0xb", 16, 2));
+
+		// Other radixes, where x is a separator and bytes above 0xFF are skipped
+		assertBytes(new int[] { 0xaa, 0x01, 0xff, 0x01 }, readDigits("10101010 1 111111111", 2, 8));
+		assertBytes(new int[] { 0xff, 0x0a, 0x00, 0x0a }, readDigits("377 400 12 0x12", 8, 3));
+		assertBytes(new int[] { 0xff, 0x07, 0x64, 0x00 }, readDigits("255 256 7 1000", 10, 3));
+	}
+
+	public void testDigitsAreReadAcrossBuffers() throws Exception {
+		StringBuilder text = new StringBuilder();
+		byte[] expected = new byte[10000];
+		for (int i = 0; i < expected.length; i++) {
+			expected[i] = (byte) (i * 7);
+			text.append(Integer.toHexString((i * 7) & 0xFF));
+			text.append(i % 3 == 0 ? " " : ",");
+		}
+		assertTrue(Arrays.equals(expected, readDigits(text.toString(), 16, 2)));
+
+		DigitInputStream in = new DigitInputStream(new StringReader("fe"), 16, 2);
+		assertEquals(0xfe, in.read());
+		assertEquals(-1, in.read());
+		assertEquals(-1, in.read(new byte[4], 0, 4));
+	}
+
+	public void testByteEditorPastesTextAsOneChange() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		ByteEditor editor = new ByteEditor(doc);
+		final List events = new ArrayList();
+		doc.addObserver(new Observer() {
+			public void update(Observable o, Object arg) {
+				events.add(arg);
+			}
+		});
+
+		// More than one 64 KB buffer of bytes
+		StringBuilder text = new StringBuilder();
+		for (int i = 0; i < 100000; i++) {
+			text.append(Integer.toHexString(0x10 + i % 0xF0)).append(' ');
+		}
+		editor.paste(new StringSelection(text.toString()));
+		assertEquals(100000, doc.length());
+		assertEquals(1, events.size());
+		assertEquals(1, doc.getUndoHistory().getUndoCount());
+		assertEquals(0x10 + 99999 % 0xF0, doc.read(doc.createOffset(99999)) & 0xFF);
+		assertEquals(100000, editor.getCurrentLocation().getOffset());
+		assertTrue(doc.getUndoHistory().undo());
+		assertEquals(0, doc.length());
+	}
+
+	public void testByteEditorPasteReplacesOrOverwrites() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		doc.insert(doc.createOffset(0), new byte[] { 0x00, 0x11, 0x22, 0x33, 0x44 });
+		ByteEditor editor = new ByteEditor(doc);
+
+		// The selection is replaced
+		editor.setSelectionSpan(new ByteSpan(doc.createOffset(1), doc.createOffset(2)));
+		editor.paste(new StringSelection("aa bb cc"));
+		assertBytes(new int[] { 0x00, 0xaa, 0xbb, 0xcc, 0x33, 0x44 }, readBytes(doc));
+		assertEquals(4, editor.getCurrentLocation().getOffset());
+
+		// On a byte, the bytes at the cursor are overwritten
+		editor.setSelectionSpan(null);
+		editor.setCurrentLocation(doc.createOffset(0));
+		editor.paste(new StringSelection("0xee,0xff"));
+		assertBytes(new int[] { 0xee, 0xff, 0xbb, 0xcc, 0x33, 0x44 }, readBytes(doc));
+		assertEquals(2, editor.getCurrentLocation().getOffset());
+	}
+
+	public void testCharEditorPastesTypeableCharacters() throws Exception {
+		BinaryDocument doc = new BinaryDocument();
+		doc.insert(doc.createOffset(0), "abcdef".getBytes());
+		CharEditor editor = new CharEditor(doc);
+
+		editor.setSelectionSpan(new ByteSpan(doc.createOffset(1), doc.createOffset(2)));
+		editor.paste(new StringSelection("X\u00e9Y\u001bZ\n"));
+		assertEquals("aXYZdef", readAll(doc));
+		// After the last pasted character, as if it had been typed
+		assertEquals(4, editor.getCurrentLocation().getOffset());
+		assertEquals(2, doc.getUndoHistory().getUndoCount());
+
+		// Nothing typeable, nothing changed
+		editor.setSelectionSpan(null);
+		editor.paste(new StringSelection("\u00e9\n"));
+		assertEquals("aXYZdef", readAll(doc));
+	}
+
+	private static byte[] readDigits(String text, int radix, int byteWidth) throws IOException {
+		DigitInputStream in = new DigitInputStream(new StringReader(text), radix, byteWidth);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] b = new byte[3];
+		for (int n = in.read(b, 0, b.length); n >= 0; n = in.read(b, 0, b.length)) {
+			out.write(b, 0, n);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] readBytes(BinaryDocument doc) {
+		byte[] buf = new byte[(int) doc.length()];
+		doc.read(doc.createOffset(0), buf);
+		return buf;
+	}
+
+	private static void assertBytes(int[] expected, byte[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], actual[i] & 0xFF);
+		}
+	}
+
+	/**
+	 * Call a package-private hook of jhexedit.bdoc, taking one argument of
+	 * the given type, or none if type is null.
+	 */
+	private static Object callHook(Class c, Object target, String name, Class type, Object arg)
+			throws Exception {
+		Class[] types = (type == null ? new Class[0] : new Class[] { type });
+		Object[] args = (type == null ? new Object[0] : new Object[] { arg });
+		Method m = c.getDeclaredMethod(name, types);
+		m.setAccessible(true);
+		return m.invoke(target, args);
+	}
+
+	private static Set spillFiles() {
+		Set files = new HashSet();
+		File[] list = new File(System.getProperty("java.io.tmpdir")).listFiles();
+		for (int i = 0; i < list.length; i++) {
+			if (list[i].getName().endsWith(".spill")) files.add(list[i]);
+		}
+		return files;
+	}
+
+	private static File createFile(String content) throws IOException {
+		File file = File.createTempFile("jhexedit", ".bin");
+		file.deleteOnExit();
+		FileOutputStream out = new FileOutputStream(file);
+		out.write(content.getBytes());
+		out.close();
+		return file;
+	}
+
+	private static String readFile(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new FileInputStream(file));
+		byte[] buf = new byte[(int) file.length()];
+		in.readFully(buf);
+		in.close();
+		return new String(buf);
+	}
+
+	private static String readAll(BinaryDocument doc) {
+		byte[] buf = new byte[(int) doc.length()];
+		if (buf.length > 0)
+			assertEquals(buf.length, doc.read(doc.createOffset(0), buf));
+		return new String(buf);
+	}
+
 	private static class DocumentObserver implements Observer {
 		public LinkedList events = new LinkedList();
 		public synchronized void update(Observable o, Object arg) {
@@ -43,9 +43,13 @@ import javax.swing.event.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.font.TextAttribute;
-import java.text.AttributedString;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.Map;
 
 public class TextGrid extends JComponent implements TextGridModelListener, Scrollable {
 
@@ -65,6 +69,43 @@ public class TextGrid extends JComponent implements TextGridModelListener, Scrol
   public static final int UNDERLINE_LOW_DOTTED = 64;
   public static final int UNDERLINE_LOW_DOUBLE = 128;
 
+  // The attributes the font is derived with for each combination of styles
+  private static final Map [] STYLE_ATTRIBUTES = new Map[256];
+  static {
+    for (int style=0; style<STYLE_ATTRIBUTES.length; style++) {
+      Map attributes = new HashMap();
+      if ( (style & BOLD) > 0 )
+        attributes.put(TextAttribute.WEIGHT, TextAttribute.WEIGHT_BOLD);
+      if ( (style & ITALIC) > 0 )
+        attributes.put(TextAttribute.POSTURE, TextAttribute.POSTURE_OBLIQUE);
+
+      if ( (style & STRIKETHROUGH) > 0 )
+        attributes.put(TextAttribute.STRIKETHROUGH, TextAttribute.STRIKETHROUGH_ON);
+
+      if ( (style & UNDERLINE) > 0 )
+        attributes.put(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_ON);
+      else if ( (style & UNDERLINE_LOW) > 0 )
+        attributes.put(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_LOW_ONE_PIXEL);
+      else if ( (style & UNDERLINE_LOW_DASHED) > 0 )
+        attributes.put(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_LOW_DASHED);
+      else if ( (style & UNDERLINE_LOW_DOTTED) > 0 )
+        attributes.put(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_LOW_DOTTED);
+      else if ( (style & UNDERLINE_LOW_DOUBLE) > 0 )
+        attributes.put(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_LOW_TWO_PIXEL);
+
+      STYLE_ATTRIBUTES[style] = Collections.unmodifiableMap(attributes);
+    }
+  }
+
+  // Number of rendered rows kept for repainting
+  private static final int ROW_CACHE_SIZE = 512;
+
+  // Most rows fetched from the model at a time to be laid out
+  private static final int FETCH_ROWS = 64;
+
+  // Most rows a grid with a row model asks to be tall enough to show
+  private static final int PREFERRED_WINDOW_ROWS = 32;
+
   // MEMBERS  
   protected int charHeight;
   protected int charWidth;
@@ -75,6 +116,41 @@ public class TextGrid extends JComponent implements TextGridModelListener, Scrol
   protected TextGridModel model;
   protected TextGridCursor cursor;
 
+  // The row and column counts when the model was last seen, to tell when
+  // they change
+  protected int rowCount;
+  protected int columnCount;
+
+  // The text of recently painted rows, with the runs of colours and styles
+  // of the model but without the selection, least recently painted first. 
+  // Rows are dropped when the model says they changed.
+  private LinkedHashMap rowCache = new LinkedHashMap(64, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry eldest) {
+      return size() > ROW_CACHE_SIZE;
+    }
+  };
+
+  // The font derived for each combination of styles, once used
+  private Font [] styleFonts = new Font[STYLE_ATTRIBUTES.length];
+
+  // The characters and spans of the rows being fetched
+  private char [] fetchChars = new char[0];
+  private TextGridSpans fetchSpans = new TextGridSpans();
+
+  // When set, the grid is a window onto the model, as tall as its parent
+  // makes it, and this model (in rows) holds the row shown at its top. 
+  // Otherwise the grid is as tall as the model and topRow is always 0.
+  private BoundedRangeModel rowModel;
+  private int topRow;
+  private ChangeListener rowModelListener = new ChangeListener() {
+    public void stateChanged(ChangeEvent e) {
+      if (rowModel.getValue() != topRow) {
+        topRow = rowModel.getValue();
+        repaint();
+      }
+    }
+  };
+
   /**
    * Construct the editor with a document.
    */
@@ -95,6 +171,14 @@ public class TextGrid extends JComponent implements TextGridModelListener, Scrol
     charHeight  = getFontMetrics(font).getHeight()-1;  // TODO: Figure out why this works better. 
     charWidth   = getFontMetrics(font).charWidth('0'); // Assume fixed width!
     charDescent = getFontMetrics(font).getDescent();
+    styleFonts  = new Font[STYLE_ATTRIBUTES.length];
+    clearRowCache();
+    updateRowModel();
+  }
+
+  public void setEnabled(boolean enabled) {
+    super.setEnabled(enabled);
+    clearRowCache();
   }
 
   // MODEL STUFF
@@ -109,8 +193,13 @@ public class TextGrid extends JComponent implements TextGridModelListener, Scrol
           
     this.model = model;
 
-    if (model != null)
+    if (model != null) {
       model.addTextGridModelListener(this);
+      rowCount    = model.getRowCount();
+      columnCount = model.getColumnCount();
+    }
+    clearRowCache();
+    updateRowModel();
 
     revalidate();
     repaint();
@@ -118,12 +207,102 @@ public class TextGrid extends JComponent implements TextGridModelListener, Scrol
 
   // model can change its column count, so this is now dynamic
   public Dimension getPreferredSize() {
+    int rows = model.getRowCount();
+    if (rowModel != null)
+      rows = Math.min(rows, PREFERRED_WINDOW_ROWS);
     return new Dimension(leftMargin + model.getColumnCount()*charWidth,
-                         topMargin + model.getRowCount()*charHeight);
+                         (int) Math.min(topMargin + (long) rows*charHeight, Integer.MAX_VALUE));
   }
 
   public Dimension getMinimumSize() {
-    return getPreferredSize();
+    Dimension d = getPreferredSize();
+    if (rowModel != null)
+      d.height = topMargin + charHeight;
+    return d;
+  }
+
+  public void setBounds(int x, int y, int width, int height) {
+    super.setBounds(x, y, width, height);
+    updateRowModel();
+  }
+
+  // SCROLLING STUFF
+
+  /**
+   * Make the grid a window onto its model, which shows the rows from 
+   * rowModel's value down for as far as the grid is tall, rather than 
+   * growing with the model and leaving the scrolling to a viewport. This 
+   * keeps the grid's size in range however many rows the model has. The 
+   * grid keeps the model's extent and maximum up to date. Several grids can
+   * share a model to scroll together. Pass null to size the grid to the 
+   * whole model again.
+   */
+  public void setRowModel(BoundedRangeModel rowModel) {
+    if (this.rowModel != null)
+      this.rowModel.removeChangeListener(rowModelListener);
+
+    this.rowModel = rowModel;
+    topRow = 0;
+
+    if (rowModel != null) {
+      rowModel.addChangeListener(rowModelListener);
+      topRow = rowModel.getValue();
+      updateRowModel();
+    }
+
+    revalidate();
+    repaint();
+  }
+
+  public BoundedRangeModel getRowModel() {
+    return rowModel;
+  }
+
+  /**
+   * Get the row shown at the top of the grid.
+   */
+  public int getTopRow() {
+    return topRow;
+  }
+
+  /**
+   * Get the number of rows that fit the grid whole.
+   */
+  public int getVisibleRowCount() {
+    return Math.max(1, (getHeight() - topMargin) / charHeight);
+  }
+
+  /**
+   * Scroll so that the character at row, col is visible. Unlike a 
+   * rectangle, this can scroll to rows any distance from the top row.
+   */
+  public void scrollToVisible(int row, int col) {
+    if (rowModel != null) {
+      if (row < topRow)
+        rowModel.setValue(row);
+      else if (row >= topRow + getVisibleRowCount())
+        rowModel.setValue(row - getVisibleRowCount() + 1);
+    }
+    scrollRectToVisible(modelToView(row, col));
+  }
+
+  /**
+   * Scroll so that r is visible. A grid with a row model scrolls its rows
+   * itself, and leaves only the horizontal part to its ancestors.
+   */
+  public void scrollRectToVisible(Rectangle r) {
+    if (rowModel == null) {
+      super.scrollRectToVisible(r);
+      return;
+    }
+
+    int below = r.y + r.height - getHeight();
+    if (r.y < 0)
+      rowModel.setValue(topRow - (charHeight - 1 - r.y) / charHeight);
+    else if (below > 0)
+      rowModel.setValue(topRow + (charHeight - 1 + below) / charHeight);
+
+    super.scrollRectToVisible(new Rectangle(r.x, 0, r.width, 0));
   }
 
   // CURSOR STUFF
@@ -159,7 +338,7 @@ public class TextGrid extends JComponent implements TextGridModelListener, Scrol
    * Convert a screen point to row and column position.
    */
   public Point viewToModel(Point p) {
-    int row = (p.y-topMargin) / charHeight;
+    long row = (long) topRow + Math.floorDiv(p.y-topMargin, charHeight);
     int col = (p.x-leftMargin) / charWidth;
     row = row < 0 ? 0 : row;
     row = row >= getRowCount() ? getRowCount() - 1 : row;
@@ -167,14 +346,17 @@ public class TextGrid extends JComponent implements TextGridModelListener, Scrol
     col = col < 0 ? 0 : col;
     col = col >= getColumnCount() ? getColumnCount() - 1 : col;
     
-    return new Point(col,row);
+    return new Point(col,(int) row);
   }
 
   /**
    * Convert a row/column to a rectangle on the screen. 
    */
   public Rectangle modelToView(int row, int col) {
-    return new Rectangle(col * charWidth + leftMargin, row * charHeight + topMargin, charWidth, charHeight);
+    // Rows far off the grid are clamped to well outside it
+    long y = (long) (row - topRow) * charHeight + topMargin;
+    y = Math.max(Integer.MIN_VALUE/2, Math.min(y, Integer.MAX_VALUE/2));
+    return new Rectangle(col * charWidth + leftMargin, (int) y, charWidth, charHeight);
   }
   
   /**
@@ -205,10 +387,59 @@ public class TextGrid extends JComponent implements TextGridModelListener, Scrol
     return model.getCharStyle(row, col);
   }
 
+  /**
+   * Repaint the visible part of the rows from firstRow to lastRow.
+   */
+  public void repaintRows(int firstRow, int lastRow) {
+    Rectangle visible = getVisibleRect();
+    long top    = Math.max((long) (firstRow-topRow)*charHeight + topMargin, visible.y);
+    long bottom = Math.min((long) (lastRow+1-topRow)*charHeight + topMargin, visible.y + visible.height);
+    if (top < bottom)
+      repaint(visible.x, (int) top, visible.width, (int) (bottom - top));
+  }
+
+  /**
+   * Fetch the rows from firstRow to lastRow into the cache ahead of painting
+   * them, so that painting them takes no more than drawing them.
+   */
+  public void prepareRows(int firstRow, int lastRow) {
+    loadRows(Math.max(firstRow, 0), Math.min(lastRow, getRowCount() - 1));
+  }
+
   // TEXT GRID MODEL LISTENER INTERFACE
+  /**
+   * Repaint the rows the event covers. Inserting or deleting shifts the rows
+   * that follow, so these are repainted to the bottom of the view, and 
+   * the grid is only revalidated if the number of rows changed.
+   */
   public void textGridUpdated(TextGridModelEvent e) {
-    revalidate();
-    repaint();
+    int oldRowCount = rowCount;
+    rowCount = getRowCount();
+
+    if (columnCount != getColumnCount()) {
+      columnCount = getColumnCount();
+      clearRowCache();
+      revalidate();
+      repaint();
+      return;
+    }
+
+    int firstRow = e.getFirstRow();
+    if (firstRow == TextGridModelEvent.FIRST_ROW)
+      firstRow = 0;
+    int lastRow = e.getLastRow();
+    if (lastRow == TextGridModelEvent.LAST_ROW || e.getType() != TextGridModelEvent.UPDATE)
+      lastRow = Integer.MAX_VALUE - 1;
+
+    if (rowCount != oldRowCount) {
+      // Rows were added or removed at the end, too
+      firstRow = Math.min(firstRow, Math.max(0, Math.min(rowCount, oldRowCount) - 1));
+      lastRow  = Integer.MAX_VALUE - 1;
+      updateRowModel();
+      revalidate();
+    }
+    clearRowCache(firstRow, lastRow);
+    repaintRows(firstRow, lastRow);
   }
 
   // SCROLLABLE INTERFACE
@@ -286,118 +517,23 @@ public class TextGrid extends JComponent implements TextGridModelListener, Scrol
     Point minRowCol = viewToModel(new Point(bounds.x,bounds.y));
     Point maxRowCol = viewToModel(new Point(bounds.x+bounds.width,bounds.y+bounds.height));
     
-    String line;
-    
-    Rectangle rect;    
-    Color bgColor;
-    Color fgColor;
-    int style;
-    int i,j;
+    boolean selectionVisible = (cursor != null && cursor.isSelectionVisible());
+    loadRows(minRowCol.y, maxRowCol.y);
 
     // Draw the text layer
-    for (i=minRowCol.y; i<=maxRowCol.y; i++) {
-      int lastStyle = 0;
-      int lastStyleIdx = 0;
-      
-      Color lastBg = getBackground(); 
-      int lastBgIdx = 0;
-
-      Color lastFg = getForeground();
-      int lastFgIdx = 0;
-      
-      rect = modelToView(i,0);
-      int baseLine = rect.y + rect.height - charDescent;
-      
-      AttributedString as = new AttributedString(getRowText(i));
-      as.addAttribute(TextAttribute.FONT, getFont());
-      
-      for (j=minRowCol.x; j<=maxRowCol.x; j++) {
-        if (cursor != null && cursor.isSelectionVisible() && cursor.isSelected(i,j)) {
-          bgColor = cursor.getSelectionColor();
-          fgColor = cursor.getSelectedTextColor();
-        }
-        else {
-          bgColor = model.getCharBackground(i,j);
-          fgColor = model.getCharColor(i,j);
-        }
-        
-        if (!lastFg.equals(fgColor)) {         
-          if (j>0)
-            as.addAttribute(TextAttribute.FOREGROUND, lastFg, lastFgIdx, j);
-          lastFg = fgColor;
-          lastFgIdx = j;
-        }
-
-        if (!lastBg.equals(bgColor)) { 
-          if (j>0)        
-            as.addAttribute(TextAttribute.BACKGROUND, lastBg, lastBgIdx, j);
-          lastBg = bgColor;
-          lastBgIdx = j;
-        }
+    for (int i=minRowCol.y; i<=maxRowCol.y; i++) {
+      Row row = getRow(i);
+      if (row == null)
+        continue;
 
-        style = model.getCharStyle(i,j);
-        
-        if ( lastStyle != style ) {   
-          if (lastStyle > 0) {    
-            if ( (lastStyle & BOLD) > 0 && (lastStyle & ITALIC) > 0 )
-              as.addAttribute(TextAttribute.FONT, BOLD_ITALIC_FONT, lastStyleIdx, j); 
-            else if ( (lastStyle & ITALIC) > 0 )
-              as.addAttribute(TextAttribute.FONT, ITALIC_FONT, lastStyleIdx, j); 
-            else if ( (lastStyle & BOLD) > 0 )
-              as.addAttribute(TextAttribute.FONT, BOLD_FONT, lastStyleIdx, j); 
-        
-            if ( (lastStyle & STRIKETHROUGH) > 0 )
-              as.addAttribute(TextAttribute.STRIKETHROUGH, TextAttribute.STRIKETHROUGH_ON, lastStyleIdx, j); 
-        
-            if ( (lastStyle & UNDERLINE) > 0 )
-              as.addAttribute(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_ON, lastStyleIdx, j);        
-            else if ( (lastStyle & UNDERLINE_LOW) > 0 )
-              as.addAttribute(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_LOW_ONE_PIXEL, lastStyleIdx, j);  
-            else if ( (lastStyle & UNDERLINE_LOW_DASHED) > 0 )
-              as.addAttribute(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_LOW_DASHED, lastStyleIdx, j); 
-            else if ( (lastStyle & UNDERLINE_LOW_DOTTED) > 0 )
-              as.addAttribute(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_LOW_DOTTED, lastStyleIdx, j); 
-            else if ( (lastStyle & UNDERLINE_LOW_DOUBLE) > 0 )
-              as.addAttribute(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_LOW_TWO_PIXEL, lastStyleIdx, j);
-          }
-          
-          lastStyle = style;
-          lastStyleIdx = j;
-        } 
-      }
-
-      // Apply remaining color changes
-      as.addAttribute(TextAttribute.FOREGROUND, lastFg, lastFgIdx, j);
-      as.addAttribute(TextAttribute.BACKGROUND, lastBg, lastBgIdx, j);
-      
-      // Apply remaining style change 
-      if (lastStyle > 0) {                  
-        if ( (lastStyle & BOLD) > 0 && (lastStyle & ITALIC) > 0 )
-          as.addAttribute(TextAttribute.FONT, BOLD_ITALIC_FONT, lastStyleIdx, j); 
-        else if ( (lastStyle & ITALIC) > 0 )
-          as.addAttribute(TextAttribute.FONT, ITALIC_FONT, lastStyleIdx, j); 
-        else if ( (lastStyle & BOLD) > 0 )
-          as.addAttribute(TextAttribute.FONT, BOLD_FONT, lastStyleIdx, j); 
-        
-        if ( (lastStyle & STRIKETHROUGH) > 0 )
-          as.addAttribute(TextAttribute.STRIKETHROUGH, TextAttribute.STRIKETHROUGH_ON, lastStyleIdx, j); 
-        
-        if ( (lastStyle & UNDERLINE) > 0 )
-          as.addAttribute(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_ON, lastStyleIdx, j);        
-        else if ( (lastStyle & UNDERLINE_LOW) > 0 )
-          as.addAttribute(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_LOW_ONE_PIXEL, lastStyleIdx, j);  
-        else if ( (lastStyle & UNDERLINE_LOW_DASHED) > 0 )
-          as.addAttribute(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_LOW_DASHED, lastStyleIdx, j); 
-        else if ( (lastStyle & UNDERLINE_LOW_DOTTED) > 0 )
-          as.addAttribute(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_LOW_DOTTED, lastStyleIdx, j); 
-        else if ( (lastStyle & UNDERLINE_LOW_DOUBLE) > 0 )
-          as.addAttribute(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_LOW_TWO_PIXEL, lastStyleIdx, j);
-      }
+      Rectangle rect = modelToView(i,0);
+      int baseLine = rect.y + rect.height - charDescent;
+      paintRow(g2d, row, minRowCol.x, maxRowCol.x, rect.y, baseLine);
 
-      g2d.translate(leftMargin, baseLine);
-      g2d.drawString(as.getIterator(), 0, 0);    
-      g2d.translate(-leftMargin, -baseLine);
+      if (selectionVisible)
+        paintSelection(g2d, i, row, minRowCol.x, maxRowCol.x, rect.y, baseLine);
     }
+    g2d.setFont(getFont());
     
     // Draw the caret
     if (cursor != null && shouldDrawCursor())
@@ -412,7 +548,7 @@ public class TextGrid extends JComponent implements TextGridModelListener, Scrol
     int offset = 0;
     if (cursor != null && cursor.isSelectionVisible()) {
       Point p = cursor.getSelectionStart();
-      offset = charHeight * p.y;
+      offset = modelToView(p.y, 0).y - topMargin;
     }
     return offset;
   }
@@ -438,11 +574,212 @@ public class TextGrid extends JComponent implements TextGridModelListener, Scrol
 
   //////////////////////////
   // PROTECTED METHODS
-  
-  private String getRowText(int row) {
-    char [] chars = new char[getColumnCount()];
-    for (int j=0; j<chars.length; j++)
-      chars[j] = getCharAt(row,j);
-    return new String(chars);
+
+  /**
+   * Forget the rendered rows, so that they are laid out again when painted.
+   */
+  protected void clearRowCache() {
+    if (rowCache != null)
+      rowCache.clear();
+  }
+
+  /**
+   * Forget the rendered rows from firstRow to lastRow.
+   */
+  protected void clearRowCache(int firstRow, int lastRow) {
+    Iterator i = rowCache.keySet().iterator();
+    while (i.hasNext()) {
+      int row = ((Integer) i.next()).intValue();
+      if (row >= firstRow && row <= lastRow)
+        i.remove();
+    }
+  }
+
+  /**
+   * Fit the row model to the rows of the model and the height of the grid.
+   */
+  private void updateRowModel() {
+    if (rowModel == null || model == null)
+      return;
+
+    int visibleRows = getVisibleRowCount();
+    int rows = Math.max(getRowCount(), visibleRows);
+    rowModel.setRangeProperties(Math.min(rowModel.getValue(), rows - visibleRows), visibleRows,
+                                0, rows, rowModel.getValueIsAdjusting());
+  }
+
+  /**
+   * Returns a row with the runs of colours and styles of the model, from 
+   * the cache if possible, or null if the row is empty.
+   */
+  private Row getRow(int row) {
+    Row r = (Row) rowCache.get(Integer.valueOf(row));
+    if (r == null && getColumnCount() > 0) {
+      loadRows(row, row);
+      r = (Row) rowCache.get(Integer.valueOf(row));
+    }
+    return r;
+  }
+
+  /**
+   * Cache the rows from firstRow to lastRow that are not in the cache,
+   * fetching each block of consecutive missing rows from the model at once.
+   */
+  private void loadRows(int firstRow, int lastRow) {
+    if (getColumnCount() <= 0)
+      return;
+
+    int row = firstRow;
+    while (row <= lastRow) {
+      if (rowCache.containsKey(Integer.valueOf(row))) {
+        row++;
+        continue;
+      }
+      int end = row;
+      while (end < lastRow && end - row + 1 < FETCH_ROWS && !rowCache.containsKey(Integer.valueOf(end + 1)))
+        end++;
+
+      fetchRows(row, end);
+      cacheFetchedRows(row, end);
+      row = end + 1;
+    }
+  }
+
+  /**
+   * Fill fetchChars and fetchSpans with the rows from firstRow to lastRow,
+   * in one call if the model hands over whole rows, and otherwise a 
+   * character at a time.
+   */
+  private void fetchRows(int firstRow, int lastRow) {
+    int columns = getColumnCount();
+    int size = (lastRow - firstRow + 1) * columns;
+    if (fetchChars.length < size)
+      fetchChars = new char[size];
+    fetchSpans.clear();
+
+    if (model instanceof TextGridRowModel) {
+      ((TextGridRowModel) model).getRows(firstRow, lastRow, fetchChars, 0, fetchSpans);
+      return;
+    }
+
+    int k = 0;
+    for (int i=firstRow; i<=lastRow; i++) {
+      for (int j=0; j<columns; j++) {
+        fetchChars[k++] = getCharAt(i, j);
+        fetchSpans.add(i, j, j+1, model.getCharColor(i, j), model.getCharBackground(i, j),
+                       model.getCharStyle(i, j));
+      }
+    }
+  }
+
+  /**
+   * Put the fetched rows from firstRow to lastRow in the cache.
+   */
+  private void cacheFetchedRows(int firstRow, int lastRow) {
+    int columns = getColumnCount();
+    int span = 0;
+    for (int i=firstRow; i<=lastRow; i++) {
+      int firstSpan = span;
+      while (span < fetchSpans.size() && fetchSpans.getRow(span) == i)
+        span++;
+      rowCache.put(Integer.valueOf(i), new Row(fetchChars, (i - firstRow) * columns, columns,
+                                               fetchSpans, firstSpan, span));
+    }
+  }
+
+  /**
+   * Paint the runs of a row that fall between the first and last column.
+   */
+  private void paintRow(Graphics2D g2d, Row row, int firstColumn, int lastColumn, int y, int baseLine) {
+    for (int k=0; k<row.starts.length; k++) {
+      int start = Math.max(row.starts[k], firstColumn);
+      int end   = Math.min(row.ends[k], lastColumn + 1);
+      if (start < end)
+        paintRun(g2d, row.chars, start, end, row.colors[k], row.backgrounds[k], row.styles[k], y, baseLine);
+    }
+  }
+
+  /**
+   * Paint the selected characters of a row, between the first and last 
+   * column, over the row, keeping the style of each.
+   */
+  private void paintSelection(Graphics2D g2d, int i, Row row, int firstColumn, int lastColumn, int y, int baseLine) {
+    int j = firstColumn;
+    while (j <= lastColumn) {
+      if (!cursor.isSelected(i, j)) {
+        j++;
+        continue;
+      }
+      int start = j;
+      while (j <= lastColumn && cursor.isSelected(i, j))
+        j++;
+
+      for (int k=0; k<row.starts.length; k++) {
+        int runStart = Math.max(row.starts[k], start);
+        int runEnd   = Math.min(row.ends[k], j);
+        if (runStart < runEnd)
+          paintRun(g2d, row.chars, runStart, runEnd, cursor.getSelectedTextColor(), 
+                   cursor.getSelectionColor(), row.styles[k], y, baseLine);
+      }
+    }
+  }
+
+  /**
+   * Fill the background of the characters from start up to end, and draw 
+   * them over it.
+   */
+  private void paintRun(Graphics2D g2d, char [] chars, int start, int end, Color color, Color background,
+                        int style, int y, int baseLine) {
+    int x = leftMargin + start*charWidth;
+    g2d.setColor(background);
+    g2d.fillRect(x, y, (end - start)*charWidth, charHeight);
+    g2d.setColor(color);
+    g2d.setFont(getStyleFont(style));
+    g2d.drawChars(chars, start, end - start, x, baseLine);
+  }
+
+  /**
+   * Returns the font characters of a style are drawn in.
+   */
+  private Font getStyleFont(int style) {
+    if (style <= 0)
+      return getFont();
+
+    style &= STYLE_ATTRIBUTES.length - 1;
+    if (styleFonts[style] == null)
+      styleFonts[style] = getFont().deriveFont(STYLE_ATTRIBUTES[style]);
+    return styleFonts[style];
+  }
+
+  //////////////////////////
+  // INNER CLASSES
+
+  /**
+   * The characters of a row, and its runs of colours and style.
+   */
+  private static final class Row {
+    final char [] chars;
+    final int [] starts;
+    final int [] ends;
+    final Color [] colors;
+    final Color [] backgrounds;
+    final int [] styles;
+
+    Row(char [] chars, int off, int columns, TextGridSpans spans, int firstSpan, int endSpan) {
+      this.chars  = Arrays.copyOfRange(chars, off, off + columns);
+      int n       = endSpan - firstSpan;
+      starts      = new int[n];
+      ends        = new int[n];
+      colors      = new Color[n];
+      backgrounds = new Color[n];
+      styles      = new int[n];
+      for (int k=0; k<n; k++) {
+        starts[k]      = spans.getStart(firstSpan + k);
+        ends[k]        = spans.getEnd(firstSpan + k);
+        colors[k]      = spans.getColor(firstSpan + k);
+        backgrounds[k] = spans.getBackground(firstSpan + k);
+        styles[k]      = spans.getStyle(firstSpan + k);
+      }
+    }
   }
 }
@@ -48,6 +48,7 @@ import javax.swing.Timer;
 public class TextGridCursor {
 
   public static final int DEFAULT_BLINK_RATE = 500;      
+  public static final int DEFAULT_BLINK_TIMEOUT = 15000;
   public static final Color DEFAULT_SELECTION_COLOR = new Color(200, 221, 241);
   public static final Color DEFAULT_SELECTED_TEXT_COLOR = Color.BLACK;
         
@@ -58,6 +59,11 @@ public class TextGridCursor {
 
   private int blinkRate = DEFAULT_BLINK_RATE;
 
+  // The caret stops blinking, and stays drawn, once the cursor has not
+  // moved for blinkTimeout milliseconds, or when the grid loses focus.
+  private int blinkTimeout = DEFAULT_BLINK_TIMEOUT;
+  private long lastMoved;
+
   private boolean visible;
   private boolean selectionVisible;
 
@@ -70,6 +76,7 @@ public class TextGridCursor {
   private TextGrid textGrid;
   private LocalMouseListener ml;
   private LocalKeyListener kl;
+  private LocalFocusListener fl;
   
   private LinkedList listeners;
 
@@ -103,10 +110,13 @@ public class TextGridCursor {
 
     kl = new LocalKeyListener();
     textGrid.addKeyListener(kl);
+
+    fl = new LocalFocusListener();
+    textGrid.addFocusListener(fl);
+    lastMoved = System.currentTimeMillis();
   }
 
   public void uninstall() {
-    this.textGrid = null;
     row = -1;
     column = -1;
     markedRow = -1;
@@ -116,7 +126,10 @@ public class TextGridCursor {
       textGrid.removeMouseListener(ml);
       textGrid.removeMouseMotionListener(ml);   
       textGrid.removeKeyListener(kl);  
+      textGrid.removeFocusListener(fl);
+      drawTimer.stop();
     }
+    this.textGrid = null;
   }
 
   public TextGrid getTextGrid() {
@@ -177,8 +190,10 @@ public class TextGridCursor {
     }
     
     // Move the cursor
+    final int oldRow = this.row;
     this.row = row;
     this.column = column; 
+    lastMoved = System.currentTimeMillis();
 
     synchronized(this) {
       if (guiUpdater == null) {
@@ -186,14 +201,15 @@ public class TextGridCursor {
           public void run() {
             synchronized(TextGridCursor.this) {
               // Scroll if necessary
-              textGrid.scrollRectToVisible(getCaretRect());
+              textGrid.scrollToVisible(getCurrentRow(), getCurrentColumn());
 
               // Draw the new caret
+              // or the rows whose selection changed
               if (!isMarkSet()) {
                 draw = true;
                 textGrid.repaint(getCaretRect());
               } else {
-                textGrid.repaint();
+                textGrid.repaintRows(Math.min(oldRow, getCurrentRow()), Math.max(oldRow, getCurrentRow()));
               }
 
               // Continue flashing
@@ -222,7 +238,7 @@ public class TextGridCursor {
     if (!isMarkSet()) { 
       markedRow = getCurrentRow();
       markedColumn = getCurrentColumn();
-      textGrid.repaint();
+      textGrid.repaintRows(markedRow, markedRow);
       
       fireTextGridCursorEvent(new TextGridCursorEvent(this, getCurrentRow(), getCurrentColumn(), markedRow, markedColumn, 
                                   TextGridCursorEvent.MARK_SET));
@@ -231,9 +247,9 @@ public class TextGridCursor {
 
   public void clearMark() {
     if (isMarkSet()) { 
+      textGrid.repaintRows(Math.min(markedRow, getCurrentRow()), Math.max(markedRow, getCurrentRow()));
       markedRow    = -1;
       markedColumn = -1;
-      textGrid.repaint();
      
       fireTextGridCursorEvent(new TextGridCursorEvent(this, getCurrentRow(), getCurrentColumn(), markedRow, markedColumn, 
                                   TextGridCursorEvent.MARK_CLEARED));
@@ -313,6 +329,14 @@ public class TextGridCursor {
     if (drawTimer != null) drawTimer.setDelay(blinkRate);
   }
 
+  public int getBlinkTimeout() {
+    return blinkTimeout;
+  }
+
+  public void setBlinkTimeout(int blinkTimeout) {
+    this.blinkTimeout = blinkTimeout;
+  }
+
   public void paint(Graphics g) {
     if (draw) {
       char c = textGrid.getCharAt(getCurrentRow(), getCurrentColumn());
@@ -424,7 +448,37 @@ public class TextGridCursor {
 
   private class DrawToggle implements ActionListener {
     public void actionPerformed(ActionEvent e) {
-      draw = !draw;
+      // Rest, with the caret drawn, until the grid is focused or the
+      // cursor moved again
+      if (!textGrid.isFocusOwner() || System.currentTimeMillis() - lastMoved > blinkTimeout) {
+        drawTimer.stop();
+        if (draw)
+          return;
+        draw = true;
+      }
+      else {
+        draw = !draw;
+      }
+      textGrid.repaint(getCaretRect());
+    }
+  }
+
+  private class LocalFocusListener implements FocusListener {
+    public void focusGained(FocusEvent e) {
+      lastMoved = System.currentTimeMillis();
+      draw = true;
+      repaintCaret();
+      drawTimer.restart();
+    }
+
+    public void focusLost(FocusEvent e) {
+      repaintCaret();
+    }
+
+    // The caret, and the colour of the selection, depend on the focus 
+    private void repaintCaret() {
+      if (isMarkSet())
+        textGrid.repaintRows(Math.min(markedRow, getCurrentRow()), Math.max(markedRow, getCurrentRow()));
       textGrid.repaint(getCaretRect());
     }
   }
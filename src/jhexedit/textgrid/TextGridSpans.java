@@ -0,0 +1,124 @@
+/* ************************************************************************
+ *                                                                        *
+ *  JHexEdit -- The hex editor written in Java.                           *
+ *  Online at http://www.madcomputerscientist.net                         *
+ *                                                                        *
+ *  Copyright (c) 2006, Adam Fourney <adam.fourney(NOSPAM)@gmail.com>     *
+ *  All rights reserved.                                                  *
+ *                                                                        *
+ *  Redistribution and use in source and binary forms, with or without    *
+ *  modification, are permitted provided that the following conditions    *
+ *  are met:                                                              *
+ *                                                                        *
+ *      * Redistributions of source code must retain the above            *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer.                                           *
+ *      * Redistributions in binary form must reproduce the above         *
+ *        copyright notice, this list of conditions and the               *
+ *        following disclaimer in the documentation and/or other          *
+ *        materials provided with the distribution.                       *
+ *      * The name of the author, Adam Fourney, may not be used to        *
+ *        endorse or promote products derived from this software          *
+ *        without specific prior written permission.                      *
+ *                                                                        *
+ *  THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS   *
+ *  "AS IS" AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT     *
+ *  LIMITED TO, THE IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS     *
+ *  FOR A PARTICULAR PURPOSE ARE DISCLAIMED. IN NO EVENT SHALL THE        *
+ *  COPYRIGHT OWNER OR CONTRIBUTORS BE LIABLE FOR ANY DIRECT, INDIRECT,   *
+ *  INCIDENTAL, SPECIAL, EXEMPLARY, OR CONSEQUENTIAL DAMAGES (INCLUDING,  *
+ *  BUT NOT LIMITED TO, PROCUREMENT OF SUBSTITUTE GOODS OR SERVICES;      *
+ *  LOSS OF USE, DATA, OR PROFITS; OR BUSINESS INTERRUPTION) HOWEVER      *
+ *  CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN CONTRACT, STRICT    *
+ *  LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE) ARISING IN     *
+ *  ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE       *
+ *  POSSIBILITY OF SUCH DAMAGE.                                           *
+ *                                                                        *
+ ************************************************************************ */
+
+package jhexedit.textgrid;
+
+import java.awt.Color;
+
+/**
+ * The runs of characters in some rows of a TextGrid that share their 
+ * colours and style, held in order as a run-length encoding of the 
+ * per-character values of a TextGridModel. The buffers are kept between
+ * uses, so that filling the spans again allocates nothing.
+ */
+public class TextGridSpans {
+
+  // PRIVATE MEMBERS
+  private int count;
+  private int [] rows          = new int[16];
+  private int [] starts        = new int[16];
+  private int [] ends          = new int[16];
+  private Color [] colors      = new Color[16];
+  private Color [] backgrounds = new Color[16];
+  private int [] styles        = new int[16];
+
+  // GETTERS
+  public int size()                   { return count; }
+  public int getRow(int i)            { return rows[i]; }
+  public int getStart(int i)          { return starts[i]; }
+  public int getEnd(int i)            { return ends[i]; }
+  public Color getColor(int i)        { return colors[i]; }
+  public Color getBackground(int i)   { return backgrounds[i]; }
+  public int getStyle(int i)          { return styles[i]; }
+
+  // PUBLIC METHODS
+  public void clear() {
+    for (int i=0; i<count; i++) {
+      colors[i] = null;
+      backgrounds[i] = null;
+    }
+    count = 0;
+  }
+
+  /**
+   * Add a run of the characters of row from column start up to, but not
+   * including, column end. A run that continues the last one added with the
+   * same colours and style is joined to it.
+   */
+  public void add(int row, int start, int end, Color color, Color background, int style) {
+    int last = count - 1;
+    if (last >= 0 && rows[last] == row && ends[last] == start && styles[last] == style &&
+        colors[last].equals(color) && backgrounds[last].equals(background)) {
+      ends[last] = end;
+      return;
+    }
+
+    if (count == rows.length)
+      grow();
+    rows[count]        = row;
+    starts[count]      = start;
+    ends[count]        = end;
+    colors[count]      = color;
+    backgrounds[count] = background;
+    styles[count]      = style;
+    count++;
+  }
+
+  ////// PRIVATE
+  private void grow() {
+    int n = 2*rows.length;
+    int [] rows = new int[n];
+    int [] starts = new int[n];
+    int [] ends = new int[n];
+    Color [] colors = new Color[n];
+    Color [] backgrounds = new Color[n];
+    int [] styles = new int[n];
+    System.arraycopy(this.rows, 0, rows, 0, count);
+    System.arraycopy(this.starts, 0, starts, 0, count);
+    System.arraycopy(this.ends, 0, ends, 0, count);
+    System.arraycopy(this.colors, 0, colors, 0, count);
+    System.arraycopy(this.backgrounds, 0, backgrounds, 0, count);
+    System.arraycopy(this.styles, 0, styles, 0, count);
+    this.rows        = rows;
+    this.starts      = starts;
+    this.ends        = ends;
+    this.colors      = colors;
+    this.backgrounds = backgrounds;
+    this.styles      = styles;
+  }
+}